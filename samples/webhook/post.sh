@@ -0,0 +1,14 @@
+#!/bin/sh
+# Posts a sample service hook payload to a Jenkins master, as TFS would.
+#
+#   JENKINS_URL=http://localhost:8080/jenkins TFS_WEBHOOK_SECRET=... ./post.sh git.push.json
+#
+# Edit the repository and project names in the payload to match a team project a generator job scans.
+set -e
+: "${JENKINS_URL:?set JENKINS_URL}"
+: "${TFS_WEBHOOK_SECRET:?set TFS_WEBHOOK_SECRET}"
+curl -sS -w '%{http_code}\n' -X POST \
+    -H 'Content-Type: application/json' \
+    -H "X-Tfs-Secret: $TFS_WEBHOOK_SECRET" \
+    --data @"${1:?payload file}" \
+    "$JENKINS_URL/tfs-webhook/"
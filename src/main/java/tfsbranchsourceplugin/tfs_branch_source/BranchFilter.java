@@ -0,0 +1,79 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Which branches of a repo are listed, and how the refs listing is paged. Include prefixes are sent
+ * to TFS as {@code filter=heads/<prefix>}, so branches outside them are never downloaded. The refs API
+ * has no negative filter, so exclude prefixes are still downloaded in full and only dropped as each page
+ * arrives; they save the Jenkinsfile probes of those branches, not the listing. Use includes to cut traffic.
+ */
+class BranchFilter {
+
+    /** Branch name prefixes to list, eg. release/. Empty lists every branch. */
+    final List<String> includes;
+    /** Branch name prefixes to skip, eg. users/. */
+    final List<String> excludes;
+    /** Refs per page, or 0 to fetch each listing in one unpaged request. */
+    final int pageSize;
+
+    BranchFilter(List<String> includes, List<String> excludes, int pageSize) {
+        this.includes = includes;
+        this.excludes = excludes;
+        this.pageSize = Math.max(0, pageSize);
+    }
+
+    /**
+     * @param includes whitespace or comma separated branch name prefixes, may be null
+     * @param excludes whitespace or comma separated branch name prefixes, may be null
+     */
+    static BranchFilter parse(String includes, String excludes, int pageSize) {
+        return new BranchFilter(split(includes), split(excludes), pageSize);
+    }
+
+    private static List<String> split(String prefixes) {
+        List<String> result = new ArrayList<>();
+        if (prefixes != null) {
+            for (String prefix : prefixes.split("[\\s,]+")) {
+                if (!prefix.isEmpty()) {
+                    result.add(prefix);
+                }
+            }
+        }
+        return result;
+    }
+
+    boolean isPaged() {
+        return pageSize > 0;
+    }
+
+    /**
+     * Whether a ref would be listed at all, for refs that did not come from a listing, eg. pushed refs.
+     */
+    boolean isIncluded(TfsRef ref) {
+        if (includes.isEmpty()) {
+            return true;
+        }
+        String branchName = ref.getBranchName();
+        for (String include : includes) {
+            if (branchName.startsWith(include)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether a listed ref is dropped. Excluded refs have already been downloaded by then.
+     */
+    boolean isExcluded(TfsRef ref) {
+        String branchName = ref.getBranchName();
+        for (String exclude : excludes) {
+            if (branchName.startsWith(exclude)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,49 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import com.cloudbees.hudson.plugins.folder.AbstractFolder;
+import com.cloudbees.hudson.plugins.folder.AbstractFolderProperty;
+import com.cloudbees.hudson.plugins.folder.AbstractFolderPropertyDescriptor;
+import hudson.Extension;
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.workflow.multibranch.WorkflowMultiBranchProject;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Holds the {@link GeneratedJobMarker} of a generated multibranch job. It has no configuration form, and
+ * saving the job's configuration keeps it as it is.
+ */
+public class GeneratedFolderProperty extends AbstractFolderProperty<AbstractFolder<?>> {
+
+    private final String source;
+    private final String name;
+    private final String fingerprint;
+
+    GeneratedFolderProperty(GeneratedJobMarker marker) {
+        this.source = marker.source;
+        this.name = marker.name;
+        this.fingerprint = marker.fingerprint;
+    }
+
+    GeneratedJobMarker getMarker() {
+        return new GeneratedJobMarker(source, name, fingerprint);
+    }
+
+    @Override
+    public AbstractFolderProperty<?> reconfigure(StaplerRequest req, JSONObject form) {
+        return this;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends AbstractFolderPropertyDescriptor {
+        @Override
+        @SuppressWarnings("rawtypes")
+        public boolean isApplicable(Class<? extends AbstractFolder> containerType) {
+            return WorkflowMultiBranchProject.class.isAssignableFrom(containerType);
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Generated by TFS Pipeline Generator";
+        }
+    }
+}
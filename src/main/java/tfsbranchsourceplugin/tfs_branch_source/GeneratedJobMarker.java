@@ -0,0 +1,92 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import com.cloudbees.hudson.plugins.folder.AbstractFolder;
+import hudson.BulkChange;
+import hudson.model.AbstractItem;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+
+import java.io.IOException;
+
+/**
+ * Marks jobs created by this plugin, recording the repo they were generated from, the name they were
+ * generated as and a fingerprint of the inputs they were rendered with. The marker is kept in a property
+ * users cannot edit, {@link GeneratedJobProperty} on pipeline jobs and {@link GeneratedFolderProperty} on
+ * multibranch jobs, and is removed from jobs copied from a generated job. Jobs without the marker, or
+ * renamed since they were generated, were made by hand and are never updated or pruned.
+ * <p>
+ * The fingerprint covers the template and the token values only, so drift means changed inputs: a job
+ * whose configuration was edited by hand keeps its fingerprint, and is left alone until its inputs change.
+ */
+class GeneratedJobMarker {
+
+    private static final String DESCRIPTION = "Generated by TFS Pipeline Generator from ";
+
+    /** Git URL of the repo the job was generated from. */
+    final String source;
+    /** Name the job was generated as. */
+    final String name;
+    /** Digest of the template and token values the job was rendered with. */
+    final String fingerprint;
+
+    GeneratedJobMarker(String source, String name, String fingerprint) {
+        this.source = source;
+        this.name = name;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * @return the description generated jobs are rendered with, for people to read; the marker doesn't depend on it
+     */
+    static String describe(String source) {
+        return DESCRIPTION + source;
+    }
+
+    /**
+     * @return whether the marker belongs to the item, and not to a job it was renamed from
+     */
+    boolean isOn(AbstractItem item) {
+        return name.equals(item.getName());
+    }
+
+    /**
+     * @return the marker of a generated job, or null for a job that was not generated by this plugin
+     */
+    static GeneratedJobMarker read(AbstractItem item) {
+        if (item instanceof WorkflowJob) {
+            GeneratedJobProperty property = ((WorkflowJob) item).getProperty(GeneratedJobProperty.class);
+            return property == null ? null : property.getMarker();
+        }
+        if (item instanceof AbstractFolder) {
+            GeneratedFolderProperty property = ((AbstractFolder<?>) item).getProperties().get(GeneratedFolderProperty.class);
+            return property == null ? null : property.getMarker();
+        }
+        return null;
+    }
+
+    /**
+     * Sets the marker of a pipeline or multibranch job, replacing the one it had.
+     */
+    void write(AbstractItem item) throws IOException {
+        if (item instanceof WorkflowJob) {
+            WorkflowJob job = (WorkflowJob) item;
+            BulkChange bc = new BulkChange(job);
+            try {
+                job.removeProperty(GeneratedJobProperty.class);
+                job.addProperty(new GeneratedJobProperty(this));
+                bc.commit();
+            } finally {
+                bc.abort();
+            }
+        } else if (item instanceof AbstractFolder) {
+            ((AbstractFolder<?>) item).getProperties().replace(new GeneratedFolderProperty(this));
+        }
+    }
+
+    static void remove(AbstractItem item) throws IOException {
+        if (item instanceof WorkflowJob) {
+            ((WorkflowJob) item).removeProperty(GeneratedJobProperty.class);
+        } else if (item instanceof AbstractFolder) {
+            ((AbstractFolder<?>) item).getProperties().remove(GeneratedFolderProperty.class);
+        }
+    }
+}
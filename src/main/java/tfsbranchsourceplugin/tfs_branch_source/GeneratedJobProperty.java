@@ -0,0 +1,74 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import hudson.Extension;
+import hudson.model.AbstractItem;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.JobProperty;
+import hudson.model.JobPropertyDescriptor;
+import hudson.model.listeners.ItemListener;
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.kohsuke.stapler.StaplerRequest;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds the {@link GeneratedJobMarker} of a generated pipeline job. It has no configuration form, and
+ * saving the job's configuration keeps it as it is.
+ */
+public class GeneratedJobProperty extends JobProperty<WorkflowJob> {
+
+    private final String source;
+    private final String name;
+    private final String fingerprint;
+
+    GeneratedJobProperty(GeneratedJobMarker marker) {
+        this.source = marker.source;
+        this.name = marker.name;
+        this.fingerprint = marker.fingerprint;
+    }
+
+    GeneratedJobMarker getMarker() {
+        return new GeneratedJobMarker(source, name, fingerprint);
+    }
+
+    @Override
+    public JobProperty<?> reconfigure(StaplerRequest req, JSONObject form) {
+        return this;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends JobPropertyDescriptor {
+        @Override
+        public boolean isApplicable(Class<? extends Job> jobType) {
+            return WorkflowJob.class.isAssignableFrom(jobType);
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Generated by TFS Pipeline Generator";
+        }
+    }
+
+    /**
+     * Removes the marker from jobs made with "Copy from" a generated job, which are made by hand.
+     */
+    @Extension
+    public static class CopyListener extends ItemListener {
+        private static final Logger LOGGER = Logger.getLogger(CopyListener.class.getName());
+
+        @Override
+        public void onCopied(Item src, Item item) {
+            if (item instanceof AbstractItem && GeneratedJobMarker.read((AbstractItem) item) != null) {
+                try {
+                    GeneratedJobMarker.remove((AbstractItem) item);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not remove the generated job marker from " + item.getFullName(), e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import com.squareup.okhttp.Response;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces the requests to one TFS host. One throttle is shared by every scan on this master, so parallel
+ * scans of several team projects split the server's budget between them.
+ * <ul>
+ * <li>A token bucket limits the request rate. The rate drops when the server throttles us or reports
+ * that its budget is running low in {@code X-RateLimit-*} headers, and creeps back up to the configured
+ * rate while responses come back clean.</li>
+ * <li>A {@code Retry-After} header holds back every request to the host until it has passed.</li>
+ * <li>A circuit breaker opens after a run of failed requests, so scans fail fast instead of hammering a
+ * server that is down.</li>
+ * </ul>
+ */
+class HostThrottle {
+
+    /** Failed requests in a row, after retries, that open the circuit. */
+    private static final int BREAKER_THRESHOLD = 5;
+    private static final long BREAKER_OPEN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long BASE_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    /** The lowest rate adaptation may go down to, in requests per second. */
+    private static final double MIN_RATE = 0.5;
+
+    private final String host;
+    /** Configured requests per second, which adaptation never goes above. */
+    private final double maxRate;
+    private double rate;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    /** Nothing is sent before this time, in System.currentTimeMillis() terms. */
+    private long pausedUntil;
+    private int consecutiveFailures;
+    private long breakerOpenUntil;
+
+    HostThrottle(String host, double maxRate) {
+        this.host = host;
+        this.maxRate = Math.max(MIN_RATE, maxRate);
+        this.rate = this.maxRate;
+        this.tokens = Math.max(1, this.maxRate);
+    }
+
+    /**
+     * Thrown when the circuit for a host is open. Scans let it propagate so the build fails cleanly.
+     */
+    static class CircuitOpenException extends IOException {
+        CircuitOpenException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Waits until a request may be sent to the host.
+     *
+     * @throws CircuitOpenException if the host has failed too often to be worth trying
+     */
+    void acquire() throws IOException, InterruptedException {
+        while (true) {
+            long wait;
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                if (now < breakerOpenUntil) {
+                    throw new CircuitOpenException(String.format("%s failed %d requests in a row, not sending requests to it for another %d seconds",
+                            host, BREAKER_THRESHOLD, TimeUnit.MILLISECONDS.toSeconds(breakerOpenUntil - now) + 1));
+                }
+                wait = pausedUntil - now;
+                if (wait <= 0) {
+                    refill();
+                    if (tokens >= 1) {
+                        tokens--;
+                        return;
+                    }
+                    wait = (long) Math.ceil((1 - tokens) * 1000 / rate);
+                }
+            }
+            Thread.sleep(Math.max(1, wait));
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(Math.max(1, rate), tokens + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+        lastRefill = now;
+    }
+
+    /**
+     * Adapts the rate to a response. Throttled responses halve it and pause the host for as long as the
+     * server asked; clean responses move it back towards the configured rate.
+     */
+    synchronized void onResponse(Response response) {
+        long now = System.currentTimeMillis();
+        long retryAfter = getRetryAfterMillis(response, now);
+        if (retryAfter > 0) {
+            pausedUntil = Math.max(pausedUntil, now + retryAfter);
+        }
+        if (isThrottled(response.code()) || headerDouble(response, "X-RateLimit-Delay", 0) > 0) {
+            slowDown(rate / 2);
+        } else {
+            rate = Math.min(maxRate, rate + 0.1);
+        }
+
+        //Spread what is left of the server's budget over the time until it resets
+        double remaining = headerDouble(response, "X-RateLimit-Remaining", -1);
+        double reset = headerDouble(response, "X-RateLimit-Reset", -1);
+        if (remaining >= 0 && reset > 0) {
+            double secondsToReset = Math.max(1, reset - TimeUnit.MILLISECONDS.toSeconds(now));
+            double budget = remaining / secondsToReset;
+            if (budget < rate) {
+                slowDown(budget);
+            }
+        }
+    }
+
+    private void slowDown(double newRate) {
+        rate = Math.max(MIN_RATE, newRate);
+        tokens = Math.min(tokens, 1);
+    }
+
+    /** A request went through, whatever its status, so the host is up. */
+    synchronized void onSuccess() {
+        consecutiveFailures = 0;
+    }
+
+    /** A request failed for good, after its retries. */
+    synchronized void onFailure() {
+        if (++consecutiveFailures >= BREAKER_THRESHOLD) {
+            breakerOpenUntil = System.currentTimeMillis() + BREAKER_OPEN_MILLIS;
+            consecutiveFailures = 0;
+        }
+    }
+
+    /**
+     * Jittered exponential backoff: a random wait between half and all of base * 2^attempt, capped.
+     */
+    static long backoffMillis(int attempt) {
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 16));
+        return ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+    }
+
+    /**
+     * 429 and the 5xx codes that gateways and overloaded servers send; these are worth retrying.
+     */
+    static boolean isTransient(int code) {
+        return code == 429 || code == 500 || code == 502 || code == 503 || code == 504;
+    }
+
+    private static boolean isThrottled(int code) {
+        return code == 429 || code == 503;
+    }
+
+    /**
+     * @return how long the server asked us to wait, or 0 if it didn't
+     */
+    static long getRetryAfterMillis(Response response, long now) {
+        String retryAfter = response.header("Retry-After");
+        if (retryAfter == null) {
+            return 0;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+        } catch (NumberFormatException e) {
+            //Otherwise it is an HTTP date
+            try {
+                return Math.max(0, new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US).parse(retryAfter.trim()).getTime() - now);
+            } catch (ParseException notADate) {
+                return 0;
+            }
+        }
+    }
+
+    private static double headerDouble(Response response, String name, double defaultValue) {
+        String value = response.header(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import hudson.model.BuildableItem;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads the initial branch indexing of newly generated multibranch jobs over time, using the queue's
+ * quiet period so no threads are held while waiting. Slots are shared by every scan on this master, so
+ * concurrent scans together stay within the configured rate.
+ */
+class IndexingScheduler {
+
+    private static long nextSlot;
+
+    private IndexingScheduler() {
+    }
+
+    /**
+     * Schedules indexing of the item in the next free slot.
+     *
+     * @param perMinute how many indexings may start per minute
+     * @return the quiet period, in seconds, the item was scheduled with
+     */
+    static int schedule(BuildableItem item, int perMinute) {
+        int quietPeriod = nextQuietPeriod(perMinute, System.currentTimeMillis());
+        item.scheduleBuild(quietPeriod);
+        return quietPeriod;
+    }
+
+    private static synchronized int nextQuietPeriod(int perMinute, long now) {
+        long interval = TimeUnit.MINUTES.toMillis(1) / Math.max(1, perMinute);
+        long slot = Math.max(now, nextSlot);
+        nextSlot = slot + interval;
+        return (int) TimeUnit.MILLISECONDS.toSeconds(slot - now);
+    }
+}
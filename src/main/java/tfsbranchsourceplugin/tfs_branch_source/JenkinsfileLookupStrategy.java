@@ -0,0 +1,34 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+/**
+ * How {@link TfsScanner} finds out which branches of a repo have a Jenkinsfile.
+ */
+enum JenkinsfileLookupStrategy {
+
+    /** One items request per branch, in parallel. Works on every TFS version. */
+    PER_BRANCH("One request per branch"),
+    /**
+     * Lists the root folder of many branches per itemsbatch request. Falls back to {@link #PER_BRANCH}
+     * on servers that don't have itemsbatch.
+     */
+    ITEMS_BATCH("Batched items lookup");
+
+    private final String displayName;
+
+    JenkinsfileLookupStrategy(String displayName) {
+        this.displayName = displayName;
+    }
+
+    String getDisplayName() {
+        return displayName;
+    }
+
+    static JenkinsfileLookupStrategy fromName(String name) {
+        for (JenkinsfileLookupStrategy strategy : values()) {
+            if (strategy.name().equals(name)) {
+                return strategy;
+            }
+        }
+        return ITEMS_BATCH;
+    }
+}
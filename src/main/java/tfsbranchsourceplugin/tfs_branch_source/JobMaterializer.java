@@ -0,0 +1,342 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import com.cloudbees.hudson.plugins.folder.Folder;
+import com.cloudbees.hudson.plugins.folder.computed.ComputedFolder;
+import hudson.BulkChange;
+import hudson.model.AbstractItem;
+import hudson.model.TaskListener;
+import hudson.model.TopLevelItem;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.multibranch.WorkflowMultiBranchProject;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies the results of a scan to the team project folder. The jobs are created, updated and pruned in
+ * one {@link BulkChange} on the folder, so the folder saves they cause, eg. views dropping deleted jobs,
+ * are written once at the end; each job is its own config.xml and is still written as it is created or
+ * updated. Initial indexing of the new multibranch jobs is handed to the {@link IndexingScheduler} only
+ * once every job has been created, which staggers it instead of starting all of them at once.
+ * <p>
+ * In reconcile mode generated jobs whose inputs drifted are updated, and generated jobs that are no
+ * longer wanted are handled according to the {@link OrphanPolicy}. Only jobs carrying a
+ * {@link GeneratedJobMarker} for this team project, under the name they were generated as, are ever
+ * updated or pruned. A dry run only reports
+ * what would be done. Webhook events apply a single repo at a time, leaving the other jobs alone.
+ */
+class JobMaterializer {
+
+    private final Folder folder;
+    private final XmlTemplate multibranchTemplate;
+    private final XmlTemplate pipelineTemplate;
+    private final String credentialsId;
+    private final String url;
+    private final String file;
+    private final TaskListener listener;
+    private boolean reconcile;
+    private OrphanPolicy orphanPolicy = OrphanPolicy.KEEP;
+    private boolean dryRun;
+    private ScanMetrics metrics = new ScanMetrics();
+    private String triggerSpec = "H H * * *";
+    private long triggerInterval = TimeUnit.DAYS.toMillis(1);
+
+    /** A job the scan says should exist. */
+    private static class DesiredJob {
+        final String repoName;
+        final String scriptPath;
+        final boolean multibranch;
+
+        DesiredJob(String repoName, String scriptPath, boolean multibranch) {
+            this.repoName = repoName;
+            this.scriptPath = scriptPath;
+            this.multibranch = multibranch;
+        }
+    }
+
+    JobMaterializer(Folder folder, XmlTemplate multibranchTemplate, XmlTemplate pipelineTemplate, String credentialsId, String url, String file, TaskListener listener) {
+        this.folder = folder;
+        this.multibranchTemplate = multibranchTemplate;
+        this.pipelineTemplate = pipelineTemplate;
+        this.credentialsId = credentialsId;
+        this.url = url;
+        this.file = file;
+        this.listener = listener;
+    }
+
+    JobMaterializer reconcile(OrphanPolicy orphanPolicy) {
+        this.reconcile = true;
+        this.orphanPolicy = orphanPolicy;
+        return this;
+    }
+
+    JobMaterializer dryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+        return this;
+    }
+
+    /** Records how long each job took to create or update. */
+    JobMaterializer metrics(ScanMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Sets the periodic indexing trigger of generated multibranch jobs.
+     */
+    JobMaterializer trigger(String spec, long intervalMillis) {
+        this.triggerSpec = spec;
+        this.triggerInterval = intervalMillis;
+        return this;
+    }
+
+    /**
+     * @param indexingsPerMinute rate at which new multibranch jobs are indexed, or 0 to not index them
+     */
+    void apply(List<RepoScanResult> results, int indexingsPerMinute) throws IOException, InterruptedException {
+        if (dryRun) {
+            listener.getLogger().println("\n\n--Dry run, no jobs will be changed--");
+        }
+        Map<String, DesiredJob> desired = getDesiredJobs(results);
+        List<WorkflowMultiBranchProject> created = applyJobs(desired, reconcile ? "" : null);
+        scheduleIndexing(created, indexingsPerMinute);
+    }
+
+    /**
+     * Applies the scan of a single repo, eg. after a push, without touching the jobs of other repos.
+     * The repo's existing multibranch job is indexed, and a new one only when indexCreated is set, both in
+     * the {@link IndexingScheduler}'s next free slot.
+     */
+    void applyRepo(RepoScanResult result, boolean indexCreated, int indexingsPerMinute) throws IOException, InterruptedException {
+        List<WorkflowMultiBranchProject> created = applyJobs(getDesiredJobs(Collections.singletonList(result)), null);
+        if (indexCreated) {
+            scheduleIndexing(created, indexingsPerMinute);
+        }
+        TopLevelItem existing = folder.getItem(result.repoName);
+        if (existing instanceof WorkflowMultiBranchProject && !created.contains(existing)) {
+            int quietPeriod = IndexingScheduler.schedule((WorkflowMultiBranchProject) existing, indexingsPerMinute);
+            listener.getLogger().printf("Scheduled branch indexing of %s in %d seconds%n", existing.getName(), quietPeriod);
+        }
+    }
+
+    /**
+     * Handles the generated jobs of a deleted repo according to the orphan policy, or only logs them
+     * when not reconciling.
+     */
+    void removeRepo(String repoName) throws IOException, InterruptedException {
+        applyJobs(Collections.<String, DesiredJob>emptyMap(), repoName);
+    }
+
+    /**
+     * One-off pipeline jobs first, then the multibranch jobs, each in repo order.
+     */
+    private Map<String, DesiredJob> getDesiredJobs(List<RepoScanResult> results) {
+        Map<String, DesiredJob> desired = new LinkedHashMap<>();
+        for (RepoScanResult result : results) {
+            if (result.jenkinsfiles != null) {
+                for (String jenkinsfile : result.jenkinsfiles) {
+                    desired.put(String.format("%s %s", result.repoName, jenkinsfile.split("\\.")[0]), new DesiredJob(result.repoName, jenkinsfile, false));
+                }
+            }
+        }
+        for (RepoScanResult result : results) {
+            if (result.hasJenkinsfile) {
+                desired.put(result.repoName, new DesiredJob(result.repoName, file, true));
+            }
+        }
+        return desired;
+    }
+
+    /**
+     * @param pruneRepo repo whose orphaned jobs are pruned, "" for every repo of the team project or null for none
+     * @return the multibranch jobs that were created
+     */
+    private List<WorkflowMultiBranchProject> applyJobs(Map<String, DesiredJob> desired, String pruneRepo) throws IOException, InterruptedException {
+        PrintStream logger = listener.getLogger();
+        List<WorkflowMultiBranchProject> created = new ArrayList<>();
+        BulkChange bc = new BulkChange(folder);
+        try {
+            boolean processingRepos = false;
+            for (Map.Entry<String, DesiredJob> entry : desired.entrySet()) {
+                DesiredJob job = entry.getValue();
+                if (job.multibranch && !processingRepos) {
+                    logger.println("\n\n--Processing repos--");
+                    processingRepos = true;
+                }
+                long start = System.nanoTime();
+                TopLevelItem item = materialize(entry.getKey(), job);
+                metrics.recordLatency(ScanPhase.CREATE_JOBS, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                if (item instanceof WorkflowMultiBranchProject) {
+                    created.add((WorkflowMultiBranchProject) item);
+                }
+            }
+            if (pruneRepo != null) {
+                pruneOrphans(desired, pruneRepo);
+            }
+            if (!dryRun) {
+                bc.commit();
+            }
+        } finally {
+            bc.abort();
+        }
+        return created;
+    }
+
+    private void scheduleIndexing(List<WorkflowMultiBranchProject> created, int indexingsPerMinute) {
+        if (indexingsPerMinute > 0) {
+            for (WorkflowMultiBranchProject mbp : created) {
+                int quietPeriod = IndexingScheduler.schedule(mbp, indexingsPerMinute);
+                listener.getLogger().printf("Scheduled branch indexing of %s in %d seconds%n", mbp.getName(), quietPeriod);
+            }
+        }
+    }
+
+    /**
+     * Creates the job if it doesn't exist, or in reconcile mode updates a generated job whose inputs changed.
+     *
+     * @return the job if it was created, otherwise null
+     */
+    private TopLevelItem materialize(String name, DesiredJob job) throws IOException {
+        PrintStream logger = listener.getLogger();
+        String kind = job.multibranch ? "multibranch pipeline" : "pipeline";
+        XmlTemplate template = job.multibranch ? multibranchTemplate : pipelineTemplate;
+        Map<String, String> values = getTokenValues(job);
+        GeneratedJobMarker marker = new GeneratedJobMarker(getSource(job.repoName), name, template.fingerprint(values));
+        values.put(XmlTemplate.DESCRIPTION, GeneratedJobMarker.describe(marker.source));
+
+        TopLevelItem item = folder.getItem(name);
+        if (item == null) {
+            if (dryRun) {
+                logger.printf("Would create %s for: %s%n", kind, name);
+                return null;
+            }
+            item = folder.createProjectFromXML(name, new ByteArrayInputStream(template.render(values)));
+            markGenerated(item, marker);
+            logger.printf("Created %s for: %s%n", kind, name);
+            return item;
+        }
+
+        GeneratedJobMarker existing = item instanceof AbstractItem ? GeneratedJobMarker.read((AbstractItem) item) : null;
+        if (!reconcile || existing == null || !existing.isOn((AbstractItem) item) || !existing.source.equals(marker.source)) {
+            logger.printf("%s %s already exists%n", name, kind);
+        } else if (existing.fingerprint.equals(marker.fingerprint)) {
+            logger.printf("%s %s is up to date%n", name, kind);
+        } else if (dryRun) {
+            logger.printf("Would update %s for: %s%n", kind, name);
+        } else {
+            //The template doesn't have the marker, so it is set again on the new config
+            ((AbstractItem) item).updateByXml(new StreamSource(new ByteArrayInputStream(template.render(values))));
+            markGenerated(item, marker);
+            logger.printf("Updated %s for: %s%n", kind, name);
+        }
+        return null;
+    }
+
+    /**
+     * @param repoName only prune the jobs of this repo, or "" for every repo of the team project
+     */
+    private void pruneOrphans(Map<String, DesiredJob> desired, String repoName) throws IOException, InterruptedException {
+        PrintStream logger = listener.getLogger();
+        logger.println("\n\n--Reconciling generated jobs--");
+        String source = getSource(repoName);
+        boolean everyRepo = repoName.isEmpty();
+        for (TopLevelItem item : new ArrayList<>(folder.getItems())) {
+            if (!(item instanceof AbstractItem) || desired.containsKey(item.getName())) {
+                continue;
+            }
+            GeneratedJobMarker marker = GeneratedJobMarker.read((AbstractItem) item);
+            if (marker == null || !marker.isOn((AbstractItem) item) || !isGeneratedName(item.getName(), marker.source)
+                    || !(everyRepo ? marker.source.startsWith(source) : marker.source.equals(source))) {
+                //Made by hand, renamed, or generated for another team project or repo
+                continue;
+            }
+            switch (reconcile ? orphanPolicy : OrphanPolicy.KEEP) {
+                case DELETE:
+                    if (dryRun) {
+                        logger.printf("Would delete orphaned job: %s%n", item.getName());
+                    } else {
+                        item.delete();
+                        logger.printf("Deleted orphaned job: %s%n", item.getName());
+                    }
+                    break;
+                case DISABLE:
+                    disable((AbstractItem) item);
+                    break;
+                default:
+                    logger.printf("Keeping orphaned job: %s%n", item.getName());
+            }
+        }
+    }
+
+    /**
+     * Disables a pipeline job, or a multibranch job, which also stops its periodic indexing.
+     */
+    private void disable(AbstractItem item) throws IOException {
+        PrintStream logger = listener.getLogger();
+        boolean disabled;
+        if (item instanceof WorkflowJob) {
+            disabled = ((WorkflowJob) item).isDisabled();
+        } else if (item instanceof ComputedFolder) {
+            disabled = ((ComputedFolder<?>) item).isDisabled();
+        } else {
+            logger.printf("Orphaned job cannot be disabled, keeping it: %s%n", item.getName());
+            return;
+        }
+        if (disabled) {
+            logger.printf("Orphaned job is already disabled: %s%n", item.getName());
+        } else if (dryRun) {
+            logger.printf("Would disable orphaned job: %s%n", item.getName());
+        } else {
+            if (item instanceof WorkflowJob) {
+                ((WorkflowJob) item).makeDisabled(true);
+            } else {
+                ((ComputedFolder<?>) item).setDisabled(true);
+                item.save();
+            }
+            logger.printf("Disabled orphaned job: %s%n", item.getName());
+        }
+    }
+
+    private Map<String, String> getTokenValues(DesiredJob job) {
+        Map<String, String> values = new HashMap<>();
+        values.put(XmlTemplate.REPO, job.repoName);
+        //A stable id keeps the branch source, and so the branch jobs, the same when the job is updated
+        values.put(XmlTemplate.GUID, UUID.nameUUIDFromBytes(getSource(job.repoName).getBytes(StandardCharsets.UTF_8)).toString());
+        values.put(XmlTemplate.CREDENTIALS_ID, credentialsId);
+        values.put(XmlTemplate.URL, url);
+        values.put(XmlTemplate.FILE_TYPE, job.scriptPath);
+        values.put(XmlTemplate.TRIGGER_SPEC, triggerSpec);
+        values.put(XmlTemplate.TRIGGER_INTERVAL, String.valueOf(triggerInterval));
+        return values;
+    }
+
+    private static void markGenerated(TopLevelItem item, GeneratedJobMarker marker) throws IOException {
+        if (item instanceof AbstractItem) {
+            marker.write((AbstractItem) item);
+        }
+    }
+
+    /**
+     * @return whether the name is one this class gives the jobs of the repo, ie. the repo name for its
+     * multibranch job, or the repo name and the Jenkinsfile's name for its pipeline jobs
+     */
+    private static boolean isGeneratedName(String name, String source) {
+        String repoName = source.substring(source.lastIndexOf("/_git/") + "/_git/".length());
+        return name.equals(repoName) || name.startsWith(repoName + " ");
+    }
+
+    private String getSource(String repoName) {
+        return url + "/_git/" + repoName;
+    }
+}
@@ -0,0 +1,48 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import jenkins.metrics.api.Metrics;
+import jenkins.model.Jenkins;
+
+/**
+ * Feeds scan metrics to the Metrics plugin, which is an optional dependency. Only call this class
+ * after {@link #isAvailable()} returned true, otherwise the Metrics classes can't be loaded.
+ * <p>
+ * Metric names are {@code tfs.scan.<phase>.latency} histograms in milliseconds, and
+ * {@code tfs.host.<host>.requests}, {@code .bytes}, {@code .status.<code>}, {@code .errors} and
+ * {@code .retries} counters, where dots in the host name are replaced by underscores.
+ */
+class MetricsPublisher {
+
+    private MetricsPublisher() {
+    }
+
+    static boolean isAvailable() {
+        Jenkins jenkins = Jenkins.getInstance();
+        return jenkins != null && jenkins.getPlugin("metrics") != null;
+    }
+
+    static void latency(ScanPhase phase, long millis) {
+        Metrics.metricRegistry().histogram("tfs.scan." + phase.getMetricName() + ".latency").update(millis);
+    }
+
+    static void response(String host, int code, long bytes) {
+        String prefix = prefix(host);
+        Metrics.metricRegistry().counter(prefix + "requests").inc();
+        Metrics.metricRegistry().counter(prefix + "bytes").inc(bytes);
+        Metrics.metricRegistry().counter(prefix + "status." + code).inc();
+    }
+
+    static void error(String host) {
+        String prefix = prefix(host);
+        Metrics.metricRegistry().counter(prefix + "requests").inc();
+        Metrics.metricRegistry().counter(prefix + "errors").inc();
+    }
+
+    static void retry(String host) {
+        Metrics.metricRegistry().counter(prefix(host) + "retries").inc();
+    }
+
+    private static String prefix(String host) {
+        return "tfs.host." + host.replace('.', '_') + ".";
+    }
+}
@@ -1,43 +1,73 @@
 package tfsbranchsourceplugin.tfs_branch_source;
 
+import antlr.ANTLRException;
 import com.cloudbees.hudson.plugins.folder.Folder;
-import com.cloudbees.plugins.credentials.UserCredentialsProvider;
+import com.cloudbees.hudson.plugins.folder.computed.PeriodicFolderTrigger;
 import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
-import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
-import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import com.cloudbees.plugins.credentials.common.StandardCredentials;
 import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
 import com.squareup.okhttp.*;
 import hudson.AbortException;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.*;
 import hudson.model.queue.Tasks;
 import hudson.security.ACL;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
+import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
+import hudson.util.Secret;
 import jenkins.model.Jenkins;
+import jenkins.model.ModifiableTopLevelItemGroup;
 import jenkins.tasks.SimpleBuildStep;
 import net.sf.json.JSONObject;
-import org.jenkinsci.plugins.gitclient.GitClient;
-import org.jenkinsci.plugins.workflow.multibranch.WorkflowMultiBranchProject;
-import org.json.JSONArray;
+import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class MultiBranchPipelineBuilder extends Builder implements SimpleBuildStep {
 
+    static final String MULTIBRANCH_TEMPLATE_FILE = "tfs-multibranch-template.xml";
+    static final String PIPELINE_TEMPLATE_FILE = "tfs-pipeline-template.xml";
+
     public final String teamProjectUrl;
     public final String credentialsId;
     public final Boolean runPipelines;
+    private boolean forceFullRescan;
+    private String lookupStrategy = JenkinsfileLookupStrategy.ITEMS_BATCH.name();
+    private String includeBranches;
+    private String excludeBranches;
+    private int refsPageSize;
+    private boolean reconcile;
+    private String orphanPolicy = OrphanPolicy.KEEP.name();
+    private boolean dryRun;
+    private boolean scanCollection;
+    private String teamProjects;
+    private boolean createFolders;
+    private int backgroundScanMinutes;
 
     @DataBoundConstructor
     public MultiBranchPipelineBuilder(String teamProjectUrl, String credentialsId, Boolean runPipelines) {
@@ -46,210 +76,487 @@ public class MultiBranchPipelineBuilder extends Builder implements SimpleBuildSt
         this.runPipelines = runPipelines;
     }
 
-    @Override
-    public void perform(Run<?, ?> build, FilePath workspace, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+    public boolean isForceFullRescan() {
+        return forceFullRescan;
+    }
 
-        String url = this.teamProjectUrl;
-        String file = "Jenkinsfile";
-        String credentials = credentialsId;
+    @DataBoundSetter
+    public void setForceFullRescan(boolean forceFullRescan) {
+        this.forceFullRescan = forceFullRescan;
+    }
 
-        if (url.endsWith("/")) {
-            url = url.substring(0, url.length() - 1);
-        }
+    public String getLookupStrategy() {
+        return JenkinsfileLookupStrategy.fromName(lookupStrategy).name();
+    }
 
-        final StandardUsernamePasswordCredentials tfsCredentials;
-        try {
-            tfsCredentials = getStandardUsernamePasswordCredentials(credentials);
-        } catch (Exception e) {
-            listener.getLogger().println(e.getMessage());
-            return;
-        }
-        ArrayList<String> reposWithFile = new ArrayList<>();
+    @DataBoundSetter
+    public void setLookupStrategy(String lookupStrategy) {
+        this.lookupStrategy = lookupStrategy;
+    }
 
-        OkHttpClient client = new OkHttpClient();
+    public String getIncludeBranches() {
+        return includeBranches;
+    }
 
-        listener.getLogger().println("--Looking through Team Project for repos--");
-        JSONArray repos = getReposForTeamProject(listener, client, url, tfsCredentials);
+    @DataBoundSetter
+    public void setIncludeBranches(String includeBranches) {
+        this.includeBranches = includeBranches;
+    }
 
-        for (int i = 0; i < repos.length(); i++) {
-            listener.getLogger().println("\n\n--Looking through repo for branches--");
-            JSONArray branches = getBranchesForRepo(listener, client, url, repos.getJSONObject(i), tfsCredentials);
+    public String getExcludeBranches() {
+        return excludeBranches;
+    }
 
-            for (int j = 0; j < branches.length(); j++) {
-                if (checkBranchesForFile(listener, client, url, repos.getJSONObject(i).get("id").toString(), branches.getJSONObject(j), file, tfsCredentials)) {
-                    //Once we have found the file we are looking for, we don't need to check the rest of the branches
-                    reposWithFile.add(repos.getJSONObject(i).get("name").toString());
-                    break;
-                }
-            }
+    @DataBoundSetter
+    public void setExcludeBranches(String excludeBranches) {
+        this.excludeBranches = excludeBranches;
+    }
+
+    public int getRefsPageSize() {
+        return refsPageSize;
+    }
+
+    @DataBoundSetter
+    public void setRefsPageSize(int refsPageSize) {
+        this.refsPageSize = refsPageSize;
+    }
+
+    public boolean isReconcile() {
+        return reconcile;
+    }
+
+    @DataBoundSetter
+    public void setReconcile(boolean reconcile) {
+        this.reconcile = reconcile;
+    }
+
+    public String getOrphanPolicy() {
+        return OrphanPolicy.fromName(orphanPolicy).name();
+    }
+
+    @DataBoundSetter
+    public void setOrphanPolicy(String orphanPolicy) {
+        this.orphanPolicy = orphanPolicy;
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    @DataBoundSetter
+    public void setDryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    public boolean isScanCollection() {
+        return scanCollection;
+    }
+
+    @DataBoundSetter
+    public void setScanCollection(boolean scanCollection) {
+        this.scanCollection = scanCollection;
+    }
+
+    public String getTeamProjects() {
+        return teamProjects;
+    }
+
+    @DataBoundSetter
+    public void setTeamProjects(String teamProjects) {
+        this.teamProjects = teamProjects;
+    }
+
+    public boolean isCreateFolders() {
+        return createFolders;
+    }
+
+    @DataBoundSetter
+    public void setCreateFolders(boolean createFolders) {
+        this.createFolders = createFolders;
+    }
+
+    public int getBackgroundScanMinutes() {
+        return backgroundScanMinutes;
+    }
+
+    @DataBoundSetter
+    public void setBackgroundScanMinutes(int backgroundScanMinutes) {
+        this.backgroundScanMinutes = Math.max(0, backgroundScanMinutes);
+    }
 
+    @Override
+    public void perform(Run<?, ?> build, FilePath workspace, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+        ScanMetrics metrics = new ScanMetrics();
+        build.addAction(new ScanMetricsAction(metrics));
+        if (backgroundScanMinutes > 0 && !(build.getParent() instanceof Project)) {
+            listener.getLogger().println("Background scans only run for freestyle jobs, backgroundScanMinutes is ignored");
+        }
+        if (scan(build.getParent(), listener, metrics, true) == ScanOutcome.INCOMPLETE) {
+            build.setResult(Result.UNSTABLE);
+        }
+    }
+
+    /** How a call to {@link #scan(Job, TaskListener, ScanMetrics, boolean)} ended. */
+    enum ScanOutcome {
+        COMPLETE,
+        /** Some team projects could not be scanned. */
+        INCOMPLETE,
+        /** Another scan of the same team projects was running and the scan was not allowed to wait. */
+        SKIPPED
+    }
 
-            //Create one-off pipeline jobs if they have files in the top level of their master branch that are .Jenkinsfiles
-            List<String> jenkinsfiles = getJenkinsfileTypesFromMasterBranch(listener, client, url, repos.getJSONObject(i), tfsCredentials);
-            if(jenkinsfiles != null && jenkinsfiles.size() > 0) {
-                listener.getLogger().printf("\t--Creating Pipeline jobs from .Jenkinsfiles--%n");
-                String folderName = ((FreeStyleBuild) build).getProject().getParent().getFullName();
-                Folder folder = Jenkins.getInstance().getItemByFullName(folderName, Folder.class);
-                for(String jenkinsfile : jenkinsfiles) {
-                    String repoName = repos.getJSONObject(i).get("name").toString();
-                    String jobName = String.format("%s %s", repoName, jenkinsfile.split("\\.")[0]);
-                    TopLevelItem job = folder.getItem(jobName);
-                    if (job == null) {
-                        InputStream configuredFile = replaceTokensInXML(getPipelineXml(), repos.getJSONObject(i).get("name").toString(), credentials, url, jenkinsfile);
-                        folder.createProjectFromXML(jobName, configuredFile);
-                        listener.getLogger().printf("\tCreated pipeline for: %s%n", jobName);
-                    } else {
-                        listener.getLogger().printf("\t%s pipeline already exists%n", jobName);
-                    }
+    /**
+     * Scans the team projects and generates their jobs. Used by builds of the job this step is in, and
+     * by the {@link TfsBackgroundScanner}. Only one scan of a team project runs at a time.
+     *
+     * @param job the job this step is configured in, which keeps the scan state
+     * @param waitForLock whether to wait for other scans of the same team projects to finish, or to skip this one
+     */
+    ScanOutcome scan(Job<?, ?> job, TaskListener listener, ScanMetrics metrics, boolean waitForLock) throws IOException, InterruptedException {
+        String url = stripTrailingSlash(this.teamProjectUrl);
+        String authorization = TfsCredentials.getAuthorization(job, credentialsId, url);
+
+        //One client per TFS host, shared by every team project on it
+        Map<String, TfsRestClient> restClients = new LinkedHashMap<>();
+
+        //Team project URL to the folder its jobs are generated in
+        Map<String, Folder> targets = new LinkedHashMap<>();
+        if (isMultiProject()) {
+            List<String> urls = new ArrayList<>();
+            if (scanCollection) {
+                listener.getLogger().println("--Looking through the collection for team projects--");
+                for (String name : TfsScanner.getTeamProjectNames(getRestClient(restClients, url, authorization, metrics), url)) {
+                    listener.getLogger().println("Found team project: " + name);
+                    urls.add(url + "/" + URLEncoder.encode(name, "UTF-8").replace("+", "%20"));
                 }
+            } else {
+                urls.add(url);
             }
-            else {
-                listener.getLogger().printf("\tNo .Jenkinsfiles found in master branch");
+            for (String teamProject : Util.fixNull(teamProjects).split("\\s+")) {
+                if (!teamProject.isEmpty() && !urls.contains(stripTrailingSlash(teamProject))) {
+                    urls.add(stripTrailingSlash(teamProject));
+                }
+            }
+            for (String teamProjectUrl : urls) {
+                Folder folder = getTargetFolder(job, teamProjectUrl, listener.getLogger());
+                if (folder != null) {
+                    targets.put(teamProjectUrl, folder);
+                }
             }
+        } else {
+            if (!(job.getParent() instanceof Folder)) {
+                throw new AbortException(String.format("Team project folder does not exist! Please make a folder for the %s team project before running this job.", job.getParent().getFullName()));
+            }
+            targets.put(url, (Folder) job.getParent());
         }
 
-        listener.getLogger().println("\n\n--Processing repos--");
-        String folderName = ((FreeStyleBuild) build).getProject().getParent().getFullName();
-        Folder folder = Jenkins.getInstance().getItemByFullName(folderName, Folder.class);
-        if (folder == null) {
-            throw new AbortException(String.format("Team project folder does not exist! Please make a folder for the %s team project before running this job.", folderName));
-        }
-        else {
-            for (String name : reposWithFile) {
-                InputStream configuredFile = replaceTokensInXML(getMultibranchPipelineXml(), name, credentials, url, file);
-                TopLevelItem job = folder.getItem(name);
-                if (job == null) {
-                    folder.createProjectFromXML(name, configuredFile);
-                    listener.getLogger().println("Created multibranch pipeline for: " + name);
-                    WorkflowMultiBranchProject mbp = (WorkflowMultiBranchProject) folder.getItem(name);
-                    if(runPipelines != null && runPipelines) {
-                        mbp.scheduleBuild();
-                    }
-                } else {
-                    listener.getLogger().println(name + " multibranch pipeline already exists");
-                }
+        if (!TeamProjectLocks.tryLock(targets.keySet())) {
+            if (!waitForLock) {
+                listener.getLogger().println("Skipping the scan, another scan of these team projects is running");
+                return ScanOutcome.SKIPPED;
             }
+            listener.getLogger().println("Waiting for another scan of these team projects to finish");
+            TeamProjectLocks.lock(targets.keySet());
+        }
+        try {
+            return scan(job, listener, metrics, targets, restClients, authorization) ? ScanOutcome.COMPLETE : ScanOutcome.INCOMPLETE;
+        } finally {
+            TeamProjectLocks.unlock(targets.keySet());
         }
     }
 
-    @Override
-    public MultiBranchPipelineBuilder.DescriptorImpl getDescriptor() {
-        return (MultiBranchPipelineBuilder.DescriptorImpl) super.getDescriptor();
-    }
+    private boolean scan(Job<?, ?> job, TaskListener listener, ScanMetrics metrics, Map<String, Folder> targets,
+                         Map<String, TfsRestClient> restClients, String authorization) throws IOException, InterruptedException {
+        String file = "Jenkinsfile";
+        ScanState previousState = new ScanState();
+        if (forceFullRescan) {
+            listener.getLogger().println("Forcing a full rescan, ignoring the results of the last scan");
+        } else {
+            try {
+                previousState = ScanState.load(job);
+            } catch (IOException e) {
+                listener.getLogger().println("Could not read the results of the last scan, doing a full rescan: " + e.getMessage());
+            }
+        }
 
-    private JSONArray getReposForTeamProject(TaskListener listener, OkHttpClient client, String teamProjectUrl, StandardUsernamePasswordCredentials tfsCredentials) throws IOException {
-        String listOfReposUrl = teamProjectUrl + "/_apis/git/repositories?api-version=1";
-        org.json.JSONObject obj = callGet(client, listOfReposUrl, tfsCredentials);
-        JSONArray repos = obj.getJSONArray("value");
-        for (int i = 0; i < repos.length(); i++) {
-            org.json.JSONObject repo = repos.getJSONObject(i);
-            listener.getLogger().println("Found repo: - " + repo.get("id") + " - " + repo.get("name"));
+        JenkinsfileLookupStrategy strategy = JenkinsfileLookupStrategy.fromName(lookupStrategy);
+        BranchFilter branchFilter = BranchFilter.parse(includeBranches, excludeBranches, refsPageSize);
+        List<TfsScanner> scanners = new ArrayList<>();
+        for (String teamProjectUrl : targets.keySet()) {
+            TfsRestClient rest = getRestClient(restClients, teamProjectUrl, authorization, metrics);
+            scanners.add(new TfsScanner(rest, teamProjectUrl, file, previousState, strategy, branchFilter));
         }
-        return repos;
-    }
 
-    private JSONArray getBranchesForRepo(TaskListener listener, OkHttpClient client, String teamProjectUrl, org.json.JSONObject repo, StandardUsernamePasswordCredentials tfsCredentials) throws IOException {
-        String listOfBranchesUrl = String.format("%s/_apis/git/repositories/%s/refs?filter=heads&api-version=1.0", teamProjectUrl, repo.get("id"));
-        org.json.JSONObject obj = callGet(client, listOfBranchesUrl, tfsCredentials);
-        JSONArray branches = obj.getJSONArray("value");
-        listener.getLogger().println("Repo: " + repo.get("name"));
-        for (int j = 0; j < branches.length(); j++) {
-            org.json.JSONObject branch = branches.getJSONObject(j);
-            listener.getLogger().println("Found branch: " + branch.get("name"));
+        ScanQueue queue = new ScanQueue(getDescriptor().getScanThreads(), metrics);
+        Map<TfsScanner, List<RepoScanResult>> results;
+        try {
+            results = queue.scan(scanners, listener.getLogger());
+        } catch (HostThrottle.CircuitOpenException e) {
+            //Fail without saving the scan state or touching any jobs, the next scan starts where this one did
+            throw new AbortException("Aborting the scan: " + e.getMessage());
+        }
+        if (!isMultiProject() && !queue.getFailures().isEmpty()) {
+            throw new AbortException(queue.getFailures().values().iterator().next());
         }
+        int requestsIssued = 0;
+        for (TfsRestClient rest : restClients.values()) {
+            requestsIssued += rest.getRequestsIssued();
+        }
+        listener.getLogger().printf("%d requests issued using the %s strategy%n", requestsIssued, strategy.getDisplayName());
 
-        return branches;
-    }
+        ScanState state = new ScanState();
+        for (TfsScanner scanner : results.keySet()) {
+            state.putAll(scanner.getState());
+        }
+        state.save(job);
+
+        //Folder and job mutations are applied once the scan is complete, in team project and repo order
+        PeriodicFolderTrigger trigger = getDescriptor().getIndexingTrigger();
+        for (Map.Entry<TfsScanner, List<RepoScanResult>> entry : results.entrySet()) {
+            String teamProjectUrl = entry.getKey().getTeamProjectUrl();
+            Folder folder = targets.get(teamProjectUrl);
+            if (isMultiProject()) {
+                listener.getLogger().printf("%n%n--Generating jobs in %s--%n", folder.getFullName());
+            }
+            XmlTemplate pipelineTemplate = getTemplate(folder, PIPELINE_TEMPLATE_FILE, getDescriptor().getPipelineTemplate(), getPipelineXml());
+            XmlTemplate multibranchTemplate = getTemplate(folder, MULTIBRANCH_TEMPLATE_FILE, getDescriptor().getMultibranchTemplate(), getMultibranchPipelineXml());
+
+            JobMaterializer materializer = new JobMaterializer(folder, multibranchTemplate, pipelineTemplate, credentialsId, teamProjectUrl, file, listener)
+                    .trigger(trigger.getSpec(), trigger.getIntervalMillis())
+                    .dryRun(dryRun)
+                    .metrics(metrics);
+            if (reconcile) {
+                materializer.reconcile(OrphanPolicy.fromName(orphanPolicy));
+            }
+            materializer.apply(entry.getValue(), runPipelines != null && runPipelines && !dryRun ? getDescriptor().getIndexingsPerMinute() : 0);
+        }
 
-    private boolean checkBranchesForFile(TaskListener listener, OkHttpClient client, String teamProjectUrl, String repoId, org.json.JSONObject branch, String file, StandardUsernamePasswordCredentials tfsCredentials) throws IOException {
-        String branchName = branch.get("name").toString().substring(11);
-        listener.getLogger().printf("\t--Looking through branch: %s for a jenkinsfile--%n", branchName);
-        String jenkinsFileMetadataUrl = String.format("%s/_apis/git/repositories/%s/items?api-version=1.0&version=%s&scopepath=/%s", teamProjectUrl, repoId, branchName, file);
-        org.json.JSONObject obj = callGet(client, jenkinsFileMetadataUrl, tfsCredentials);
-        if (obj.has("value")) {
-            JSONArray fileList = obj.getJSONArray("value");
-            for (int k = 0; k < fileList.length(); k++) {
-                listener.getLogger().println("\tFOUND JENKINS FILE!");
-                return true;
+        if (!queue.getFailures().isEmpty()) {
+            listener.getLogger().printf("%n%n%d team projects could not be scanned:%n", queue.getFailures().size());
+            for (Map.Entry<TfsScanner, String> failure : queue.getFailures().entrySet()) {
+                listener.getLogger().printf("\t%s: %s%n", failure.getKey().getTeamProjectUrl(), failure.getValue());
             }
-        } else {
-            listener.getLogger().println("\tNone found");
             return false;
         }
-        return false;
+        return true;
+    }
+
+    /** How a call to {@link #onRepoEvent(Job, RepoEvent, TaskListener)} ended. */
+    enum EventOutcome {
+        /** The event's repo is not in a team project this step scans. */
+        IGNORED,
+        APPLIED,
+        /** The team project is being scanned; the event should be applied again later. */
+        BUSY
     }
 
-    private List<String> getJenkinsfileTypesFromMasterBranch(TaskListener listener, OkHttpClient client, String teamProjectUrl, org.json.JSONObject repo, StandardUsernamePasswordCredentials tfsCredentials) throws IOException{
-        List<String> jenkinsfiles = new ArrayList<String>();
-        listener.getLogger().println("\t--Searching for master branch--");
-        String listOfFiles = String.format("%s/_apis/git/repositories/%s/items?api-version-1.0&version=master&scopepath=/&recursionLevel=OneLevel", teamProjectUrl, repo.get("id"));
-        org.json.JSONObject filesJson = callGet(client, listOfFiles, tfsCredentials);
-        if (filesJson.has("value")) {
-            JSONArray files = filesJson.getJSONArray("value");
-            for (int j = 0; j < files.length(); j++) {
-                org.json.JSONObject file = files.getJSONObject(j);
-                if(file.get("path").toString().endsWith(".Jenkinsfile")) {
-                    jenkinsfiles.add(file.get("path").toString().substring(1));
+    /**
+     * Applies a service hook event for one repo, if the repo belongs to a team project this step scans.
+     * The repo is rescanned on its own, using and updating the state of the job's last scan, so only its
+     * branches that moved are probed. Doesn't wait for a scan of the team project to finish, so one team
+     * project's scan doesn't hold up the events of others.
+     */
+    EventOutcome onRepoEvent(Job<?, ?> job, RepoEvent event, TaskListener listener) throws IOException, InterruptedException {
+        String url = stripTrailingSlash(this.teamProjectUrl);
+        String teamProjectUrl = null;
+        if (scanCollection) {
+            if (event.host == null || event.host.equalsIgnoreCase(new URL(url).getHost())) {
+                teamProjectUrl = url + "/" + URLEncoder.encode(event.projectName, "UTF-8").replace("+", "%20");
+            }
+        } else {
+            List<String> urls = new ArrayList<>();
+            urls.add(url);
+            for (String teamProject : Util.fixNull(teamProjects).split("\\s+")) {
+                if (!teamProject.isEmpty()) {
+                    urls.add(stripTrailingSlash(teamProject));
+                }
+            }
+            for (String candidate : urls) {
+                if ((event.host == null || event.host.equalsIgnoreCase(new URL(candidate).getHost()))
+                        && event.projectName.equalsIgnoreCase(getTeamProjectName(candidate))) {
+                    teamProjectUrl = candidate;
+                    break;
                 }
             }
-            return jenkinsfiles;
         }
-        else {
-            listener.getLogger().println("\tRepo has no master branch");
-            return null;
+        if (teamProjectUrl == null) {
+            return EventOutcome.IGNORED;
+        }
+        if (dryRun) {
+            listener.getLogger().printf("Ignoring %s, %s is a dry run%n", event, job.getFullName());
+            return EventOutcome.IGNORED;
         }
-    }
 
-    private org.json.JSONObject callGet(OkHttpClient client, String url, StandardUsernamePasswordCredentials tfsCredentials) throws IOException {
-        Request okRequest = new Request.Builder()
-                .url(url)
-                .addHeader("content-type", "application/json")
-                .addHeader("accept", "application/json")
-                .addHeader("authorization", Credentials.basic(tfsCredentials.getUsername(), tfsCredentials.getPassword().getPlainText()))
-                .build();
-        Response response = client.newCall(okRequest).execute();
+        Folder folder;
+        if (isMultiProject()) {
+            folder = getTargetFolder(job, teamProjectUrl, listener.getLogger());
+        } else {
+            folder = job.getParent() instanceof Folder ? (Folder) job.getParent() : null;
+        }
+        if (folder == null) {
+            return EventOutcome.IGNORED;
+        }
 
-        String json = response.body().string();
-        response.body().close();
-        return new org.json.JSONObject(json);
+        String file = "Jenkinsfile";
+        XmlTemplate pipelineTemplate = getTemplate(folder, PIPELINE_TEMPLATE_FILE, getDescriptor().getPipelineTemplate(), getPipelineXml());
+        XmlTemplate multibranchTemplate = getTemplate(folder, MULTIBRANCH_TEMPLATE_FILE, getDescriptor().getMultibranchTemplate(), getMultibranchPipelineXml());
+        PeriodicFolderTrigger trigger = getDescriptor().getIndexingTrigger();
+        JobMaterializer materializer = new JobMaterializer(folder, multibranchTemplate, pipelineTemplate, credentialsId, teamProjectUrl, file, listener)
+                .trigger(trigger.getSpec(), trigger.getIntervalMillis());
+        if (reconcile) {
+            materializer.reconcile(OrphanPolicy.fromName(orphanPolicy));
+        }
+        Collection<String> locked = Collections.singleton(teamProjectUrl);
+        if (!TeamProjectLocks.tryLock(locked)) {
+            return EventOutcome.BUSY;
+        }
+        try {
+            if (event.type == RepoEvent.Type.DELETED) {
+                materializer.removeRepo(event.repoName);
+                return EventOutcome.APPLIED;
+            }
+
+            String authorization = TfsCredentials.getAuthorization(job, credentialsId, teamProjectUrl);
+            ScanState state;
+            try {
+                state = ScanState.load(job);
+            } catch (IOException e) {
+                state = new ScanState();
+            }
+            String host = new URL(teamProjectUrl).getHost();
+            TfsRestClient rest = new TfsRestClient(getDescriptor().getHttpClient(host), teamProjectUrl, authorization, getDescriptor().getMaxRequestsPerHost(),
+                    getDescriptor().getRequestsPerSecond(), getDescriptor().getMaxRetries(), new ScanMetrics());
+            TfsScanner scanner = new TfsScanner(rest, teamProjectUrl, file, state, JenkinsfileLookupStrategy.fromName(lookupStrategy),
+                    BranchFilter.parse(includeBranches, excludeBranches, refsPageSize));
+            RepoScanResult result;
+            ExecutorService probePool = Executors.newFixedThreadPool(getDescriptor().getScanThreads());
+            try {
+                result = scanner.scanRepo(probePool, new TfsRepo(event.repoId, event.repoName), event.type == RepoEvent.Type.PUSH ? event.branches : null);
+            } finally {
+                probePool.shutdownNow();
+            }
+            listener.getLogger().print(result.log);
+            state.putAll(scanner.getState());
+            state.save(job);
+
+            materializer.applyRepo(result, runPipelines != null && runPipelines, getDescriptor().getIndexingsPerMinute());
+            return EventOutcome.APPLIED;
+        } finally {
+            TeamProjectLocks.unlock(locked);
+        }
     }
 
-    private StandardUsernamePasswordCredentials getStandardUsernamePasswordCredentials(String credentialsId) throws Exception {
-        ClassLoader loader = Jenkins.getInstance().pluginManager.getPlugin("credentials").classLoader;
+    private static String getTeamProjectName(String teamProjectUrl) throws UnsupportedEncodingException {
+        String encodedName = teamProjectUrl.substring(teamProjectUrl.lastIndexOf('/') + 1);
+        return URLDecoder.decode(encodedName.replace("+", "%2B"), "UTF-8");
+    }
+
+    private boolean isMultiProject() {
+        return scanCollection || Util.fixEmptyAndTrim(teamProjects) != null;
+    }
 
-        UserCredentialsProvider provider = new UserCredentialsProvider();
-        Class credentialType = loader.loadClass("com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials");
-        List<StandardUsernamePasswordCredentials> credentials = provider.lookupCredentials(credentialType);
+    private TfsRestClient getRestClient(Map<String, TfsRestClient> restClients, String teamProjectUrl, String authorization, ScanMetrics metrics) throws IOException {
+        String host = new URL(teamProjectUrl).getHost();
+        TfsRestClient rest = restClients.get(host);
+        if (rest == null) {
+            rest = new TfsRestClient(getDescriptor().getHttpClient(host), teamProjectUrl, authorization, getDescriptor().getMaxRequestsPerHost(),
+                    getDescriptor().getRequestsPerSecond(), getDescriptor().getMaxRetries(), metrics);
+            restClients.put(host, rest);
+        }
+        return rest;
+    }
 
-        StandardUsernamePasswordCredentials tfsCredentials = null;
-        for (StandardUsernamePasswordCredentials c : credentials) {
-            if (c.getId().equals(credentialsId)) {
-                tfsCredentials = c;
+    /**
+     * The folder a team project's jobs are generated in. The team project URL of this step keeps using
+     * the folder this job is in, as in a single team project scan; other team projects, and every team
+     * project of a collection, use the folder named after them next to it.
+     *
+     * @return the folder, or null if the team project is skipped
+     */
+    private Folder getTargetFolder(Job<?, ?> job, String teamProjectUrl, PrintStream logger) throws IOException {
+        ItemGroup<?> parent = job.getParent();
+        if (parent instanceof Folder) {
+            if (!scanCollection && teamProjectUrl.equals(stripTrailingSlash(this.teamProjectUrl))) {
+                return (Folder) parent;
             }
+            parent = ((Folder) parent).getParent();
         }
-        if (tfsCredentials == null) {
-            throw new Exception("No TFS username found");
+        return getTeamProjectFolder(parent, teamProjectUrl, logger);
+    }
+
+    /**
+     * The folder named after the team project in the given item group, created if allowed.
+     *
+     * @return the folder, or null if the team project is skipped
+     */
+    private Folder getTeamProjectFolder(ItemGroup<?> parent, String teamProjectUrl, PrintStream logger) throws IOException {
+        String name = getTeamProjectName(teamProjectUrl);
+        Item item = parent.getItem(name);
+        if (item instanceof Folder) {
+            return (Folder) item;
+        }
+        if (item != null) {
+            logger.printf("Skipping team project %s, %s is not a folder%n", name, item.getFullName());
+            return null;
+        }
+        if (!createFolders) {
+            logger.printf("Skipping team project %s, there is no folder for it%n", name);
+            return null;
+        }
+        if (dryRun) {
+            logger.printf("Would create folder for team project %s%n", name);
+            return null;
+        }
+        if (!(parent instanceof ModifiableTopLevelItemGroup)) {
+            logger.printf("Skipping team project %s, folders cannot be created in %s%n", name, parent.getFullName());
+            return null;
+        }
+        try {
+            TopLevelItem folder = ((ModifiableTopLevelItemGroup) parent).createProject(Jenkins.getInstance().getDescriptorByType(Folder.DescriptorImpl.class), name, true);
+            logger.printf("Created folder for team project %s%n", name);
+            return (Folder) folder;
+        } catch (Failure | IllegalArgumentException e) {
+            logger.printf("Skipping team project %s, could not create a folder for it: %s%n", name, e.getMessage());
+            return null;
         }
-        return tfsCredentials;
     }
 
-    private InputStream replaceTokensInXML(String xml, String repoName, String credentialsId, String url, String file) throws IOException {
-        String repoToken = "#repo#";
-        String guidToken = "#guid#";
-        String credentialsToken = "#credentialsId#";
-        String urlToken = "#url#";
-        String fileToken = "#fileType#";
+    private static String stripTrailingSlash(String url) {
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
 
-        xml = xml.replaceAll(repoToken, repoName);
-        xml = xml.replaceAll(guidToken, java.util.UUID.randomUUID().toString());
-        xml = xml.replaceAll(credentialsToken, credentialsId);
-        xml = xml.replaceAll(urlToken, url);
-        xml = xml.replaceAll(fileToken, file);
+    @Override
+    public MultiBranchPipelineBuilder.DescriptorImpl getDescriptor() {
+        return (MultiBranchPipelineBuilder.DescriptorImpl) super.getDescriptor();
+    }
 
-        return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+    /**
+     * Picks the job template for this folder: a template file in the folder's directory wins over the
+     * global configuration, which wins over the built in template.
+     */
+    private XmlTemplate getTemplate(Folder folder, String fileName, String globalTemplate, String builtInTemplate) throws IOException {
+        File folderTemplate = new File(folder.getRootDir(), fileName);
+        String template = builtInTemplate;
+        String source = "the built in template";
+        String cacheKey = "built-in:" + fileName;
+        try {
+            if (folderTemplate.isFile()) {
+                source = folderTemplate.getPath();
+                return XmlTemplate.of(folderTemplate);
+            }
+            XmlTemplate.forget(folderTemplate.getPath());
+            if (globalTemplate != null) {
+                template = globalTemplate;
+                source = "the global configuration";
+                cacheKey = "global:" + fileName;
+            }
+            return XmlTemplate.of(cacheKey, template);
+        } catch (IllegalArgumentException e) {
+            throw new AbortException(String.format("Invalid job template in %s: %s", source, e.getMessage()));
+        }
     }
 
-    private String getMultibranchPipelineXml() {
+    static String getMultibranchPipelineXml() {
         return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
                 "<org.jenkinsci.plugins.workflow.multibranch.WorkflowMultiBranchProject plugin=\"workflow-multibranch@2.16\">\n" +
                 "    <actions>\n" +
@@ -258,7 +565,7 @@ public class MultiBranchPipelineBuilder extends Builder implements SimpleBuildSt
                 "            </blueOceanUrlObject>\n" +
                 "        </io.jenkins.blueocean.service.embedded.BlueOceanUrlAction>\n" +
                 "    </actions>\n" +
-                "    <description />\n" +
+                "    <description>#description#</description>\n" +
                 "    <properties>\n" +
                 "        <com.cloudbees.hudson.plugins.folder.properties.EnvVarsFolderProperty plugin=\"cloudbees-folders-plus@3.1\">\n" +
                 "            <properties />\n" +
@@ -286,8 +593,8 @@ public class MultiBranchPipelineBuilder extends Builder implements SimpleBuildSt
                 "    </orphanedItemStrategy>\n" +
                 "    <triggers>\n" +
                 "    <com.cloudbees.hudson.plugins.folder.computed.PeriodicFolderTrigger plugin=\"cloudbees-folder@6.9\">\n" +
-                "    <spec>H H/4 * * *</spec>\n" +
-                "    <interval>86400000</interval>\n" +
+                "    <spec>#triggerSpec#</spec>\n" +
+                "    <interval>#triggerInterval#</interval>\n" +
                 "    </com.cloudbees.hudson.plugins.folder.computed.PeriodicFolderTrigger>\n" +
                 "    </triggers>\n" +
                 "    <disabled>false</disabled>\n" +
@@ -322,10 +629,10 @@ public class MultiBranchPipelineBuilder extends Builder implements SimpleBuildSt
                 "</org.jenkinsci.plugins.workflow.multibranch.WorkflowMultiBranchProject>";
     }
 
-    private String getPipelineXml() {
+    static String getPipelineXml() {
         return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
                 "<flow-definition plugin=\"workflow-job@2.17\">\n" +
-                "    <description />\n" +
+                "    <description>#description#</description>\n" +
                 "    <keepDependencies>false</keepDependencies>\n" +
                 "    <properties>\n" +
                 "        <io.fabric8.jenkins.openshiftsync.BuildConfigProjectProperty plugin=\"openshift-sync@1.0.9\">\n" +
@@ -364,18 +671,187 @@ public class MultiBranchPipelineBuilder extends Builder implements SimpleBuildSt
     }
 
     @Extension // This indicates to Jenkins that this is an implementation of an extension point.
+    @Symbol("tfsPipelineGenerator")
     public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
 
+        private int scanThreads = 8;
+        private int maxRequestsPerHost = 8;
+        private int requestsPerSecond = 50;
+        private int maxRetries = 4;
+        private int connectionPoolSize = 16;
+        private int keepAliveSeconds = 300;
+        private int connectTimeoutSeconds = 10;
+        private int readTimeoutSeconds = 60;
+        private boolean http2Enabled = true;
+        private int indexingsPerMinute = 10;
+        private String indexingInterval = "1d";
+        private Secret webhookSecret;
+        private int webhookQuietPeriod = 10;
+        private int backgroundScanThreads = 2;
+        private String multibranchTemplate;
+        private String pipelineTemplate;
+
+        /** One long lived client per TFS host, so connections and TLS sessions survive across builds. */
+        private transient final ConcurrentMap<String, OkHttpClient> httpClients = new ConcurrentHashMap<>();
+
         public DescriptorImpl() {
             load();
         }
 
+        OkHttpClient getHttpClient(String host) {
+            OkHttpClient client = httpClients.get(host);
+            if (client == null) {
+                httpClients.putIfAbsent(host, newHttpClient());
+                client = httpClients.get(host);
+            }
+            return client;
+        }
+
+        private OkHttpClient newHttpClient() {
+            OkHttpClient client = new OkHttpClient();
+            client.setConnectionPool(new ConnectionPool(connectionPoolSize, TimeUnit.SECONDS.toMillis(keepAliveSeconds)));
+            client.setConnectTimeout(connectTimeoutSeconds, TimeUnit.SECONDS);
+            client.setReadTimeout(readTimeoutSeconds, TimeUnit.SECONDS);
+            //OkHttp requests gzip and decompresses responses on its own; HTTP/2 is only used when the server negotiates it via ALPN
+            if (http2Enabled) {
+                client.setProtocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+            } else {
+                client.setProtocols(Arrays.asList(Protocol.HTTP_1_1));
+            }
+            return client;
+        }
+
+        /**
+         * Makes later scans build clients with the new settings. Scans still running keep their clients,
+         * and the idle connections of the old pools are closed once they outlive their keep alive.
+         */
+        private void resetHttpClients() {
+            httpClients.clear();
+        }
+
+        public int getScanThreads() {
+            return scanThreads;
+        }
+
+        public int getMaxRequestsPerHost() {
+            return maxRequestsPerHost;
+        }
+
+        public int getRequestsPerSecond() {
+            return requestsPerSecond;
+        }
+
+        public int getMaxRetries() {
+            return maxRetries;
+        }
+
+        public int getIndexingsPerMinute() {
+            return indexingsPerMinute;
+        }
+
+        /**
+         * How often generated multibranch jobs index their branches on their own, eg. 1d.
+         */
+        public String getIndexingInterval() {
+            return indexingInterval;
+        }
+
+        PeriodicFolderTrigger getIndexingTrigger() {
+            try {
+                return new PeriodicFolderTrigger(indexingInterval);
+            } catch (ANTLRException e) {
+                throw new IllegalStateException("Invalid indexing interval " + indexingInterval, e);
+            }
+        }
+
+        public FormValidation doCheckIndexingInterval(@QueryParameter String value) {
+            try {
+                new PeriodicFolderTrigger(value);
+                return FormValidation.ok();
+            } catch (ANTLRException | IllegalArgumentException e) {
+                return FormValidation.error("Not a valid interval, eg. 30m, 4h or 7d");
+            }
+        }
+
+        public Secret getWebhookSecret() {
+            return webhookSecret;
+        }
+
+        public int getWebhookQuietPeriod() {
+            return webhookQuietPeriod;
+        }
+
+        public int getBackgroundScanThreads() {
+            return backgroundScanThreads;
+        }
+
+        public int getConnectionPoolSize() {
+            return connectionPoolSize;
+        }
+
+        public int getKeepAliveSeconds() {
+            return keepAliveSeconds;
+        }
+
+        public int getConnectTimeoutSeconds() {
+            return connectTimeoutSeconds;
+        }
+
+        public int getReadTimeoutSeconds() {
+            return readTimeoutSeconds;
+        }
+
+        public boolean isHttp2Enabled() {
+            return http2Enabled;
+        }
+
+        /**
+         * The multibranch job template set in the global configuration, or null to use the built in one.
+         */
+        public String getMultibranchTemplate() {
+            return multibranchTemplate;
+        }
+
+        /**
+         * The .Jenkinsfile pipeline job template set in the global configuration, or null to use the built in one.
+         */
+        public String getPipelineTemplate() {
+            return pipelineTemplate;
+        }
+
+        public FormValidation doCheckMultibranchTemplate(@QueryParameter String value) {
+            return checkTemplate(value);
+        }
+
+        public FormValidation doCheckPipelineTemplate(@QueryParameter String value) {
+            return checkTemplate(value);
+        }
+
+        private FormValidation checkTemplate(String template) {
+            if (Util.fixEmptyAndTrim(template) == null) {
+                return FormValidation.ok();
+            }
+            try {
+                XmlTemplate.parse(template);
+                return FormValidation.ok();
+            } catch (IllegalArgumentException e) {
+                return FormValidation.error(e.getMessage());
+            }
+        }
 
         public boolean isApplicable(Class<? extends AbstractProject> aClass) {
             // Indicates that this builder can be used with all kinds of project types
             return true;
         }
 
+        /**
+         * @param it the object whose configuration page shows this step
+         * @return whether background scans can be set, which only run for freestyle jobs
+         */
+        public boolean isBackgroundScanAvailable(Object it) {
+            return it instanceof Project;
+        }
+
         public ListBoxModel doFillCredentialsIdItems(@AncestorInPath Item context,
                                                      @QueryParameter String remote,
                                                      @QueryParameter String username) {
@@ -388,18 +864,61 @@ public class MultiBranchPipelineBuilder extends Builder implements SimpleBuildSt
                     .includeMatchingAs(
                             context instanceof Queue.Task ? Tasks.getAuthenticationOf((Queue.Task) context) : ACL.SYSTEM,
                             context,
-                            StandardUsernameCredentials.class,
+                            StandardCredentials.class,
                             URIRequirementBuilder.fromUri(remote).build(),
-                            GitClient.CREDENTIALS_MATCHER)
+                            TfsCredentials.MATCHER)
                     .includeCurrentValue(username);
         }
 
+        public ListBoxModel doFillLookupStrategyItems() {
+            ListBoxModel items = new ListBoxModel();
+            for (JenkinsfileLookupStrategy strategy : JenkinsfileLookupStrategy.values()) {
+                items.add(strategy.getDisplayName(), strategy.name());
+            }
+            return items;
+        }
+
+        public ListBoxModel doFillOrphanPolicyItems() {
+            ListBoxModel items = new ListBoxModel();
+            for (OrphanPolicy policy : OrphanPolicy.values()) {
+                items.add(policy.getDisplayName(), policy.name());
+            }
+            return items;
+        }
+
         public String getDisplayName() {
             return "Generate MultiBranch pipeline from TFS GIT";
         }
 
         @Override
         public boolean configure(StaplerRequest req, JSONObject formData) throws FormException {
+            scanThreads = Math.max(1, formData.optInt("scanThreads", scanThreads));
+            maxRequestsPerHost = Math.max(1, formData.optInt("maxRequestsPerHost", maxRequestsPerHost));
+            requestsPerSecond = Math.max(1, formData.optInt("requestsPerSecond", requestsPerSecond));
+            maxRetries = Math.max(0, formData.optInt("maxRetries", maxRetries));
+            indexingsPerMinute = Math.max(1, formData.optInt("indexingsPerMinute", indexingsPerMinute));
+            webhookSecret = Secret.fromString(formData.optString("webhookSecret"));
+            webhookQuietPeriod = Math.max(0, formData.optInt("webhookQuietPeriod", webhookQuietPeriod));
+            backgroundScanThreads = Math.max(1, formData.optInt("backgroundScanThreads", backgroundScanThreads));
+            if (doCheckIndexingInterval(formData.optString("indexingInterval")).kind != FormValidation.Kind.OK) {
+                throw new FormException("Invalid indexing interval: " + formData.optString("indexingInterval"), "indexingInterval");
+            }
+            indexingInterval = formData.optString("indexingInterval");
+            connectionPoolSize = Math.max(1, formData.optInt("connectionPoolSize", connectionPoolSize));
+            keepAliveSeconds = Math.max(1, formData.optInt("keepAliveSeconds", keepAliveSeconds));
+            connectTimeoutSeconds = Math.max(0, formData.optInt("connectTimeoutSeconds", connectTimeoutSeconds));
+            readTimeoutSeconds = Math.max(0, formData.optInt("readTimeoutSeconds", readTimeoutSeconds));
+            http2Enabled = formData.optBoolean("http2Enabled", http2Enabled);
+            multibranchTemplate = Util.fixEmptyAndTrim(formData.optString("multibranchTemplate"));
+            pipelineTemplate = Util.fixEmptyAndTrim(formData.optString("pipelineTemplate"));
+            if (checkTemplate(multibranchTemplate).kind == FormValidation.Kind.ERROR) {
+                throw new FormException("Invalid multibranch job template", "multibranchTemplate");
+            }
+            if (checkTemplate(pipelineTemplate).kind == FormValidation.Kind.ERROR) {
+                throw new FormException("Invalid pipeline job template", "pipelineTemplate");
+            }
+            TfsScanner.resetHostLimits();
+            resetHttpClients();
             save();
             return super.configure(req, formData);
         }
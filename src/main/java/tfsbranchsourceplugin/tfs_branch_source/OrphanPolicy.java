@@ -0,0 +1,30 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+/**
+ * What reconciliation does with a generated job whose repo is gone or no longer has the Jenkinsfile it was generated from.
+ */
+enum OrphanPolicy {
+
+    KEEP("Keep"),
+    DISABLE("Disable"),
+    DELETE("Delete");
+
+    private final String displayName;
+
+    OrphanPolicy(String displayName) {
+        this.displayName = displayName;
+    }
+
+    String getDisplayName() {
+        return displayName;
+    }
+
+    static OrphanPolicy fromName(String name) {
+        for (OrphanPolicy policy : values()) {
+            if (policy.name().equals(name)) {
+                return policy;
+            }
+        }
+        return KEEP;
+    }
+}
@@ -0,0 +1,158 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A TFS service hook event about one repo, as received by {@link TfsWebhook}.
+ */
+class RepoEvent {
+
+    enum Type {
+        PUSH("git.push"),
+        CREATED("git.repo.created"),
+        DELETED("git.repo.deleted");
+
+        private final String eventType;
+
+        Type(String eventType) {
+            this.eventType = eventType;
+        }
+
+        static Type fromEventType(String eventType) {
+            for (Type type : values()) {
+                if (type.eventType.equals(eventType)) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+
+    final Type type;
+    final String repoId;
+    final String repoName;
+    final String projectName;
+    /** Host of the TFS server, or null when the payload doesn't say. */
+    final String host;
+    /**
+     * Branches (refs/heads/...) updated by a push with their new head, or a null head for a deleted
+     * branch. Empty for other events.
+     */
+    final List<TfsRef> branches;
+
+    RepoEvent(Type type, String repoId, String repoName, String projectName, String host, List<TfsRef> branches) {
+        this.type = type;
+        this.repoId = repoId;
+        this.repoName = repoName;
+        this.projectName = projectName;
+        this.host = host;
+        this.branches = branches;
+    }
+
+    /**
+     * Reads a service hook payload. Pushes and created repos carry the repository object, deleted repos
+     * only its id and name.
+     *
+     * @return the event, or null for an event type that doesn't concern repos
+     * @throws IllegalArgumentException if the payload is missing the repo
+     */
+    static RepoEvent parse(JSONObject payload) {
+        Type type = Type.fromEventType(payload.optString("eventType"));
+        if (type == null) {
+            return null;
+        }
+        JSONObject resource = payload.optJSONObject("resource");
+        if (resource == null) {
+            throw new IllegalArgumentException("Event has no resource");
+        }
+
+        String repoId;
+        String repoName;
+        String projectName;
+        String host = null;
+        JSONObject repository = resource.optJSONObject("repository");
+        if (repository != null) {
+            repoId = repository.optString("id", null);
+            repoName = repository.optString("name", null);
+            JSONObject project = repository.optJSONObject("project");
+            projectName = project == null ? null : project.optString("name", null);
+            host = getHost(repository.optString("remoteUrl", repository.optString("url", null)));
+        } else {
+            repoId = resource.optString("repositoryId", null);
+            repoName = resource.optString("repositoryName", null);
+            projectName = resource.optString("projectName", null);
+        }
+        if (host == null) {
+            JSONObject containers = payload.optJSONObject("resourceContainers");
+            JSONObject collection = containers == null ? null : containers.optJSONObject("collection");
+            host = collection == null ? null : getHost(collection.optString("baseUrl", null));
+        }
+        if (repoId == null || repoName == null || projectName == null) {
+            throw new IllegalArgumentException("Event does not name the repository and its team project");
+        }
+
+        List<TfsRef> branches = new ArrayList<>();
+        JSONArray refUpdates = resource.optJSONArray("refUpdates");
+        if (refUpdates != null) {
+            for (int i = 0; i < refUpdates.length(); i++) {
+                JSONObject refUpdate = refUpdates.getJSONObject(i);
+                String ref = refUpdate.optString("name");
+                if (ref.startsWith("refs/heads/")) {
+                    String newObjectId = refUpdate.optString("newObjectId", null);
+                    branches.add(new TfsRef(ref, newObjectId == null || newObjectId.matches("0+") ? null : newObjectId));
+                }
+            }
+        }
+        return new RepoEvent(type, repoId, repoName, projectName, host, branches);
+    }
+
+    /**
+     * Combines this event with a later one for the same repo that replaces it while debouncing, so the
+     * branches of every push in a burst are rescanned.
+     */
+    RepoEvent followedBy(RepoEvent later) {
+        if (type == Type.PUSH && later.type == Type.PUSH) {
+            Map<String, TfsRef> merged = new LinkedHashMap<>();
+            for (TfsRef branch : branches) {
+                merged.put(branch.name, branch);
+            }
+            for (TfsRef branch : later.branches) {
+                merged.put(branch.name, branch);
+            }
+            return new RepoEvent(Type.PUSH, later.repoId, later.repoName, later.projectName, later.host, new ArrayList<>(merged.values()));
+        }
+        if (type == Type.CREATED && later.type == Type.PUSH) {
+            //A new repo is listed in full anyway
+            return new RepoEvent(Type.CREATED, later.repoId, later.repoName, later.projectName, later.host, new ArrayList<TfsRef>());
+        }
+        return later;
+    }
+
+    private static String getHost(String url) {
+        if (url == null) {
+            return null;
+        }
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        List<String> names = new ArrayList<>();
+        for (TfsRef branch : branches) {
+            names.add(branch.name);
+        }
+        return String.format("%s of %s/%s%s", type.eventType, projectName, repoName, names.isEmpty() ? "" : " " + names);
+    }
+}
@@ -0,0 +1,26 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import java.util.List;
+
+/**
+ * Outcome of scanning a single TFS repository. Results are collected by {@link TfsScanner}
+ * and applied to the folder afterwards, in repository order.
+ */
+class RepoScanResult {
+
+    final String repoId;
+    final String repoName;
+    final boolean hasJenkinsfile;
+    /** Top level .Jenkinsfiles on master, or null when the repo has no master branch. */
+    final List<String> jenkinsfiles;
+    /** Log output produced while scanning this repo, replayed once the scan is done. */
+    final String log;
+
+    RepoScanResult(String repoId, String repoName, boolean hasJenkinsfile, List<String> jenkinsfiles, String log) {
+        this.repoId = repoId;
+        this.repoName = repoName;
+        this.hasJenkinsfile = hasJenkinsfile;
+        this.jenkinsfiles = jenkinsfiles;
+        this.log = log;
+    }
+}
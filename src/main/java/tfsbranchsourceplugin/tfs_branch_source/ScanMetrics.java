@@ -0,0 +1,223 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Progress, timings and request counters of one scan. Latencies are kept per {@link ScanPhase} in fixed
+ * buckets, and requests, bytes, HTTP statuses, errors and retries per TFS host. The metrics are stored
+ * with the build by {@link ScanMetricsAction}, or printed to the log of a background scan, and also fed
+ * to the Metrics plugin as they are recorded when it is installed.
+ * <p>
+ * Getters are public for the build page; everything else is only used while scanning.
+ */
+public class ScanMetrics {
+
+    /** Upper bounds, in milliseconds, of the latency buckets. Slower samples go into one more bucket. */
+    private static final long[] BUCKETS = {50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+    private final Map<ScanPhase, PhaseStats> phases = new EnumMap<>(ScanPhase.class);
+    private final Map<String, HostStats> hosts = new TreeMap<>();
+    private int reposTotal;
+    private int reposScanned;
+    private transient boolean publish = MetricsPublisher.isAvailable();
+
+    public static class PhaseStats {
+        private final String phase;
+        private long count;
+        private long totalMillis;
+        private long maxMillis;
+        private final long[] buckets = new long[BUCKETS.length + 1];
+
+        PhaseStats(String phase) {
+            this.phase = phase;
+        }
+
+        void record(long millis) {
+            count++;
+            totalMillis += millis;
+            maxMillis = Math.max(maxMillis, millis);
+            int bucket = 0;
+            while (bucket < BUCKETS.length && millis > BUCKETS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket]++;
+        }
+
+        public String getPhase() {
+            return phase;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanMillis() {
+            return count == 0 ? 0 : totalMillis / count;
+        }
+
+        public long getMaxMillis() {
+            return maxMillis;
+        }
+
+        public long getP50Millis() {
+            return percentile(0.5);
+        }
+
+        public long getP95Millis() {
+            return percentile(0.95);
+        }
+
+        /**
+         * @return the upper bound of the bucket holding the percentile, or the max for the last bucket
+         */
+        private long percentile(double fraction) {
+            long rank = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.min(BUCKETS[i], maxMillis);
+                }
+            }
+            return maxMillis;
+        }
+    }
+
+    public static class HostStats {
+        private final String host;
+        private long requests;
+        private long bytes;
+        private long errors;
+        private long retries;
+        private final Map<Integer, Long> statuses = new TreeMap<>();
+
+        HostStats(String host) {
+            this.host = host;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getRetries() {
+            return retries;
+        }
+
+        /** Response counts by HTTP status, eg. "200: 120, 304: 4". */
+        public String getStatuses() {
+            StringBuilder result = new StringBuilder();
+            for (Map.Entry<Integer, Long> status : statuses.entrySet()) {
+                if (result.length() > 0) {
+                    result.append(", ");
+                }
+                result.append(status.getKey()).append(": ").append(status.getValue());
+            }
+            return result.toString();
+        }
+    }
+
+    synchronized void addReposTotal(int repos) {
+        reposTotal += repos;
+    }
+
+    synchronized void recordRepoScanned() {
+        reposScanned++;
+    }
+
+    /** Repos listed so far, across every team project of the scan. */
+    public synchronized int getReposTotal() {
+        return reposTotal;
+    }
+
+    public synchronized int getReposScanned() {
+        return reposScanned;
+    }
+
+    synchronized void recordLatency(ScanPhase phase, long millis) {
+        PhaseStats stats = phases.get(phase);
+        if (stats == null) {
+            stats = new PhaseStats(phase.getDisplayName());
+            phases.put(phase, stats);
+        }
+        stats.record(millis);
+        if (publish) {
+            MetricsPublisher.latency(phase, millis);
+        }
+    }
+
+    synchronized void recordResponse(String host, int code, long bytes) {
+        HostStats stats = host(host);
+        stats.requests++;
+        stats.bytes += bytes;
+        Long count = stats.statuses.get(code);
+        stats.statuses.put(code, count == null ? 1 : count + 1);
+        if (publish) {
+            MetricsPublisher.response(host, code, bytes);
+        }
+    }
+
+    synchronized void recordError(String host) {
+        HostStats stats = host(host);
+        stats.requests++;
+        stats.errors++;
+        if (publish) {
+            MetricsPublisher.error(host);
+        }
+    }
+
+    synchronized void recordRetry(String host) {
+        host(host).retries++;
+        if (publish) {
+            MetricsPublisher.retry(host);
+        }
+    }
+
+    private HostStats host(String host) {
+        HostStats stats = hosts.get(host);
+        if (stats == null) {
+            stats = new HostStats(host);
+            hosts.put(host, stats);
+        }
+        return stats;
+    }
+
+    public synchronized List<PhaseStats> getPhases() {
+        return new ArrayList<>(phases.values());
+    }
+
+    public synchronized List<HostStats> getHosts() {
+        return new ArrayList<>(hosts.values());
+    }
+
+    /**
+     * Prints the tables of the build page as text, for scans without a build.
+     */
+    synchronized void print(PrintStream logger) {
+        logger.printf("Repos scanned: %d of %d%n", reposScanned, reposTotal);
+        for (PhaseStats stats : phases.values()) {
+            logger.printf("%s: %d samples, mean %d ms, p50 %d ms, p95 %d ms, max %d ms%n", stats.getPhase(), stats.getCount(),
+                    stats.getMeanMillis(), stats.getP50Millis(), stats.getP95Millis(), stats.getMaxMillis());
+        }
+        for (HostStats stats : hosts.values()) {
+            logger.printf("%s: %d requests, %d bytes, statuses [%s], %d errors, %d retries%n", stats.getHost(), stats.getRequests(),
+                    stats.getBytes(), stats.getStatuses(), stats.getErrors(), stats.getRetries());
+        }
+    }
+}
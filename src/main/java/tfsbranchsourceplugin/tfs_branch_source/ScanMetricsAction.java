@@ -0,0 +1,35 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import hudson.model.Action;
+
+/**
+ * Shows the {@link ScanMetrics} of a scan as tables on the build page. It has no page of its own,
+ * only a summary, and is saved with the build so scan cost can be compared between builds.
+ */
+public class ScanMetricsAction implements Action {
+
+    private final ScanMetrics metrics;
+
+    ScanMetricsAction(ScanMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public ScanMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return null;
+    }
+
+    @Override
+    public String getUrlName() {
+        return null;
+    }
+}
@@ -0,0 +1,31 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import java.util.Locale;
+
+/**
+ * The phases of a scan that {@link ScanMetrics} records latencies for.
+ */
+enum ScanPhase {
+
+    LIST_PROJECTS("List team projects"),
+    LIST_REPOS("List repos"),
+    LIST_REFS("List refs"),
+    PROBE_JENKINSFILE("Probe Jenkinsfile"),
+    LIST_MASTER_ITEMS("List master items"),
+    CREATE_JOBS("Create jobs");
+
+    private final String displayName;
+
+    ScanPhase(String displayName) {
+        this.displayName = displayName;
+    }
+
+    String getDisplayName() {
+        return displayName;
+    }
+
+    /** Name used in metric names, eg. list_refs. */
+    String getMetricName() {
+        return name().toLowerCase(Locale.ENGLISH);
+    }
+}
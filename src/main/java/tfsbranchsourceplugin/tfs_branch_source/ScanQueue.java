@@ -0,0 +1,183 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the scanners of one or more team projects off one pair of worker pools. Repo tasks are queued
+ * round robin across the team projects, so a team project with hundreds of repos doesn't hold up the
+ * small ones, and the pools stay busy until the last repo of the collection is scanned.
+ * <p>
+ * A team project that fails to scan is reported and left out of the results, so its jobs are not
+ * touched; the other team projects still complete. An open circuit breaker aborts the whole scan.
+ */
+class ScanQueue {
+
+    private final int threads;
+    private final ScanMetrics metrics;
+    private final Map<TfsScanner, String> failures = new LinkedHashMap<>();
+
+    ScanQueue(int threads, ScanMetrics metrics) {
+        this.threads = Math.max(1, threads);
+        this.metrics = metrics;
+    }
+
+    /** A team project's repos, with the log output of listing them. */
+    private static class Listing {
+        final List<TfsRepo> repos;
+        final String log;
+
+        Listing(List<TfsRepo> repos, String log) {
+            this.repos = repos;
+            this.log = log;
+        }
+    }
+
+    /**
+     * Scans the team projects. Log output is replayed in team project and repo order once each is done,
+     * along with the progress of the whole scan.
+     * <p>
+     * Interrupting the calling thread, eg. by aborting the build, cancels the scan: the workers are
+     * interrupted and stop before their next request to TFS.
+     *
+     * @return the results of every team project that scanned successfully, in the given order
+     */
+    Map<TfsScanner, List<RepoScanResult>> scan(List<TfsScanner> scanners, PrintStream logger) throws IOException, InterruptedException {
+        try {
+            return scanAll(scanners, logger);
+        } catch (InterruptedException e) {
+            logger.printf("%n%nScan cancelled after %d of %d repos%n", metrics.getReposScanned(), metrics.getReposTotal());
+            throw e;
+        }
+    }
+
+    private Map<TfsScanner, List<RepoScanResult>> scanAll(List<TfsScanner> scanners, PrintStream logger) throws IOException, InterruptedException {
+        final boolean multiple = scanners.size() > 1;
+        ExecutorService repoPool = Executors.newFixedThreadPool(threads);
+        final ExecutorService probePool = Executors.newFixedThreadPool(threads);
+        try {
+            //Listing repos is one request per team project, so list them all at once
+            List<Future<Listing>> listingFutures = new ArrayList<>();
+            for (final TfsScanner scanner : scanners) {
+                listingFutures.add(repoPool.submit(new Callable<Listing>() {
+                    @Override
+                    public Listing call() throws Exception {
+                        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                        PrintStream log = TfsScanner.newPrintStream(buffer);
+                        if (multiple) {
+                            log.printf("%n%n--Team project: %s--%n", scanner.getTeamProjectUrl());
+                        }
+                        log.println("--Looking through Team Project for repos--");
+                        List<TfsRepo> repos = scanner.getReposForTeamProject(log);
+                        metrics.addReposTotal(repos.size());
+                        log.flush();
+                        return new Listing(repos, buffer.toString("UTF-8"));
+                    }
+                }));
+            }
+            List<Listing> listings = new ArrayList<>();
+            for (int i = 0; i < scanners.size(); i++) {
+                try {
+                    listings.add(TfsScanner.get(listingFutures.get(i)));
+                } catch (HostThrottle.CircuitOpenException e) {
+                    throw e;
+                } catch (IOException e) {
+                    failures.put(scanners.get(i), e.getMessage());
+                    listings.add(null);
+                }
+            }
+
+            //Queue one repo of each team project at a time
+            List<List<Future<RepoScanResult>>> repoFutures = new ArrayList<>();
+            for (int i = 0; i < scanners.size(); i++) {
+                repoFutures.add(new ArrayList<Future<RepoScanResult>>());
+            }
+            boolean queued = true;
+            for (int round = 0; queued; round++) {
+                queued = false;
+                for (int i = 0; i < scanners.size(); i++) {
+                    Listing listing = listings.get(i);
+                    if (listing != null && round < listing.repos.size()) {
+                        final TfsScanner scanner = scanners.get(i);
+                        final TfsRepo repo = listing.repos.get(round);
+                        repoFutures.get(i).add(repoPool.submit(new Callable<RepoScanResult>() {
+                            @Override
+                            public RepoScanResult call() throws Exception {
+                                RepoScanResult result = scanner.scanRepo(probePool, repo);
+                                metrics.recordRepoScanned();
+                                return result;
+                            }
+                        }));
+                        queued = true;
+                    }
+                }
+            }
+
+            Map<TfsScanner, List<RepoScanResult>> results = new LinkedHashMap<>();
+            int reported = 0;
+            for (int i = 0; i < scanners.size(); i++) {
+                TfsScanner scanner = scanners.get(i);
+                if (listings.get(i) == null) {
+                    logger.printf("%n%nCould not list the repos of %s: %s%n", scanner.getTeamProjectUrl(), failures.get(scanner));
+                    continue;
+                }
+                logger.print(listings.get(i).log);
+                List<RepoScanResult> projectResults = new ArrayList<>();
+                try {
+                    for (Future<RepoScanResult> future : repoFutures.get(i)) {
+                        RepoScanResult result = TfsScanner.get(future);
+                        logger.print(result.log);
+                        projectResults.add(result);
+                        reported = reportProgress(logger, reported);
+                    }
+                } catch (HostThrottle.CircuitOpenException e) {
+                    throw e;
+                } catch (IOException e) {
+                    for (Future<RepoScanResult> future : repoFutures.get(i)) {
+                        future.cancel(true);
+                    }
+                    failures.put(scanner, e.getMessage());
+                    logger.printf("%n%nScan of %s failed, its jobs are left as they are: %s%n", scanner.getTeamProjectUrl(), e.getMessage());
+                    continue;
+                }
+                scanner.printSummary(logger);
+                results.put(scanner, projectResults);
+            }
+            return results;
+        } finally {
+            repoPool.shutdownNow();
+            probePool.shutdownNow();
+        }
+    }
+
+    /**
+     * Prints the progress each time another tenth of the repos is done.
+     *
+     * @return the tenths reported so far
+     */
+    private int reportProgress(PrintStream logger, int reported) {
+        int scanned = metrics.getReposScanned();
+        int total = metrics.getReposTotal();
+        int tenths = total == 0 ? 10 : scanned * 10 / total;
+        if (tenths > reported) {
+            logger.printf("%n--Scanned %d of %d repos--%n", scanned, total);
+        }
+        return Math.max(tenths, reported);
+    }
+
+    /**
+     * Team projects that could not be scanned, with the reason.
+     */
+    Map<TfsScanner, String> getFailures() {
+        return failures;
+    }
+}
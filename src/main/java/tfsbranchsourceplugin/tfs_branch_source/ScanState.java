@@ -0,0 +1,79 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import hudson.XmlFile;
+import hudson.model.Job;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What the previous scan saw for each repo, persisted next to the job's config so a rerun only
+ * probes branches whose head moved since then.
+ */
+class ScanState {
+
+    private static final String FILE_NAME = "tfs-scan-state.xml";
+
+    /** Repo id to the state of that repo. */
+    private final Map<String, RepoState> repos = new HashMap<>();
+
+    static class RepoState {
+        /** ETag of the refs listing, sent back as If-None-Match. */
+        String refsETag;
+        /** Head commit of master when {@link #jenkinsfiles} was listed. */
+        String masterObjectId;
+        /** Top level .Jenkinsfiles on master, or null when the repo had no master branch. */
+        List<String> jenkinsfiles;
+        /** Branch name (refs/heads/...) to the state of that branch, in listing order. */
+        final Map<String, BranchState> branches = new LinkedHashMap<>();
+    }
+
+    static class BranchState {
+        final String objectId;
+        /** Whether the branch had a Jenkinsfile at {@link #objectId}, or null if it was never probed. */
+        Boolean hasJenkinsfile;
+
+        BranchState(String objectId, Boolean hasJenkinsfile) {
+            this.objectId = objectId;
+            this.hasJenkinsfile = hasJenkinsfile;
+        }
+    }
+
+    RepoState getRepo(String repoId) {
+        return repos.get(repoId);
+    }
+
+    void putRepo(String repoId, RepoState state) {
+        repos.put(repoId, state);
+    }
+
+    /**
+     * Adds the repos seen by another scanner, eg. of another team project scanned by the same job.
+     */
+    void putAll(ScanState other) {
+        repos.putAll(other.repos);
+    }
+
+    private static XmlFile getFile(Job<?, ?> job) {
+        return new XmlFile(new File(job.getRootDir(), FILE_NAME));
+    }
+
+    /**
+     * Loads the state left by the last scan of this job, or an empty state if there is none.
+     */
+    static ScanState load(Job<?, ?> job) throws IOException {
+        XmlFile file = getFile(job);
+        if (!file.exists()) {
+            return new ScanState();
+        }
+        return (ScanState) file.read();
+    }
+
+    void save(Job<?, ?> job) throws IOException {
+        getFile(job).write(this);
+    }
+}
@@ -0,0 +1,57 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Makes sure only one scan of a team project runs at a time on this master, whether it was started by a
+ * build, the background scanner or a webhook event. A scan locks all of its team projects at once, so
+ * scans of overlapping sets of team projects can't deadlock.
+ */
+class TeamProjectLocks {
+
+    private static final Set<String> LOCKED = new HashSet<>();
+
+    private TeamProjectLocks() {
+    }
+
+    /**
+     * Locks the team projects if none of them is being scanned.
+     *
+     * @return whether the locks were taken
+     */
+    static synchronized boolean tryLock(Collection<String> teamProjectUrls) {
+        for (String url : teamProjectUrls) {
+            if (LOCKED.contains(key(url))) {
+                return false;
+            }
+        }
+        for (String url : teamProjectUrls) {
+            LOCKED.add(key(url));
+        }
+        return true;
+    }
+
+    /**
+     * Waits until none of the team projects is being scanned, then locks them.
+     */
+    static synchronized void lock(Collection<String> teamProjectUrls) throws InterruptedException {
+        while (!tryLock(teamProjectUrls)) {
+            TeamProjectLocks.class.wait();
+        }
+    }
+
+    static synchronized void unlock(Collection<String> teamProjectUrls) {
+        for (String url : teamProjectUrls) {
+            LOCKED.remove(key(url));
+        }
+        TeamProjectLocks.class.notifyAll();
+    }
+
+    private static String key(String teamProjectUrl) {
+        String key = teamProjectUrl.toLowerCase(Locale.ENGLISH);
+        return key.endsWith("/") ? key.substring(0, key.length() - 1) : key;
+    }
+}
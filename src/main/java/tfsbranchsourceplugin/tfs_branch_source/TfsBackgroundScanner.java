@@ -0,0 +1,180 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Project;
+import hudson.model.TaskListener;
+import hudson.security.ACL;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
+import jenkins.model.Jenkins;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the scans of generator jobs that have a background scan interval, without a build and so without
+ * taking up an executor. Scans run on a small pool of their own, sized in the global configuration; a
+ * scan that is due while the pool is full, or while its team project is being scanned, waits for the
+ * next round.
+ * <p>
+ * Only freestyle generator jobs are scanned in the background: the step of a Pipeline job is only
+ * configured in its script, so it is not known between builds. A running scan is cancelled when its job
+ * is disabled or its background scans are turned off. The log of the last background scan, ending with
+ * its {@link ScanMetrics}, is kept in the job's directory.
+ */
+@Extension
+public class TfsBackgroundScanner extends AsyncPeriodicWork {
+
+    static final String LOG_FILE = "tfs-background-scan.log";
+    private static final Logger LOGGER = Logger.getLogger(TfsBackgroundScanner.class.getName());
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            new NamingThreadFactory(new DaemonThreadFactory(), "TFS background scan"));
+    /** Job full name to its running scan. */
+    private final ConcurrentMap<String, Future<?>> running = new ConcurrentHashMap<>();
+    /** Job full name to when its last background scan started. */
+    private final Map<String, Long> lastStarted = new ConcurrentHashMap<>();
+
+    public TfsBackgroundScanner() {
+        super("TFS background scan");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        MultiBranchPipelineBuilder.DescriptorImpl descriptor = Jenkins.getInstance().getDescriptorByType(MultiBranchPipelineBuilder.DescriptorImpl.class);
+        int threads = descriptor.getBackgroundScanThreads();
+        if (executor.getMaximumPoolSize() != threads) {
+            executor.setMaximumPoolSize(threads);
+        }
+
+        long now = System.currentTimeMillis();
+        for (Project<?, ?> project : Jenkins.getInstance().getAllItems(Project.class)) {
+            String name = project.getFullName();
+            MultiBranchPipelineBuilder builder = project.getBuildersList().get(MultiBranchPipelineBuilder.class);
+            boolean enabled = builder != null && builder.getBackgroundScanMinutes() > 0 && !project.isDisabled();
+
+            Future<?> scan = running.get(name);
+            if (scan != null) {
+                if (!enabled) {
+                    LOGGER.log(Level.INFO, "Cancelling the background scan of {0}", name);
+                    scan.cancel(true);
+                }
+                continue;
+            }
+            if (!enabled) {
+                lastStarted.remove(name);
+                continue;
+            }
+            Long started = lastStarted.get(name);
+            if (started != null && now - started < TimeUnit.MINUTES.toMillis(builder.getBackgroundScanMinutes())) {
+                continue;
+            }
+            submit(project, builder, now);
+        }
+    }
+
+    private void submit(final Project<?, ?> project, final MultiBranchPipelineBuilder builder, long now) {
+        final String name = project.getFullName();
+        FutureTask<Void> task = new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!scan(project, builder)) {
+                        //Another scan of the team projects was running, try again next round
+                        lastStarted.remove(name);
+                    }
+                } finally {
+                    running.remove(name);
+                }
+            }
+        }, null);
+        //Tracked before it can run, so a scan that ends at once can't leave a finished task behind
+        running.put(name, task);
+        Long previous = lastStarted.put(name, now);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            running.remove(name);
+            if (previous != null) {
+                lastStarted.put(name, previous);
+            } else {
+                lastStarted.remove(name);
+            }
+            LOGGER.log(Level.FINE, "Background scan of {0} is due, but all background scan threads are busy", name);
+        }
+    }
+
+    /**
+     * Runs the scan, logging to a new file that replaces the log of the last scan once it is done.
+     *
+     * @return false if the scan was skipped because its team projects were being scanned
+     */
+    private boolean scan(Project<?, ?> project, MultiBranchPipelineBuilder builder) {
+        SecurityContext previous = ACL.impersonate(ACL.SYSTEM);
+        File log = new File(project.getRootDir(), LOG_FILE);
+        File newLog = new File(project.getRootDir(), LOG_FILE + ".tmp");
+        StreamTaskListener listener = null;
+        MultiBranchPipelineBuilder.ScanOutcome outcome = null;
+        try {
+            listener = new StreamTaskListener(newLog);
+            long start = System.currentTimeMillis();
+            ScanMetrics metrics = new ScanMetrics();
+            outcome = builder.scan(project, listener, metrics, false);
+            if (outcome != MultiBranchPipelineBuilder.ScanOutcome.SKIPPED) {
+                listener.getLogger().printf("%n%nBackground scan %s in %d seconds%n",
+                        outcome == MultiBranchPipelineBuilder.ScanOutcome.COMPLETE ? "finished" : "finished with failures",
+                        TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - start));
+                metrics.print(listener.getLogger());
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Background scan of " + project.getFullName() + " failed", e);
+            if (listener != null) {
+                listener.getLogger().println("Background scan failed: " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.INFO, "Background scan of {0} was cancelled", project.getFullName());
+            if (listener != null) {
+                listener.getLogger().println("Background scan cancelled");
+            }
+        } finally {
+            if (listener != null) {
+                listener.closeQuietly();
+            }
+            SecurityContextHolder.setContext(previous);
+        }
+
+        try {
+            if (outcome == MultiBranchPipelineBuilder.ScanOutcome.SKIPPED) {
+                Files.deleteIfExists(newLog.toPath());
+                LOGGER.log(Level.FINE, "Skipped the background scan of {0}, its team projects were being scanned", project.getFullName());
+                return false;
+            }
+            Files.move(newLog.toPath(), log.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not keep the log of the background scan of " + project.getFullName(), e);
+        }
+        return true;
+    }
+}
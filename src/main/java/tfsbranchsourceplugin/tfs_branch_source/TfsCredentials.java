@@ -0,0 +1,85 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import com.cloudbees.plugins.credentials.CredentialsMatcher;
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardCredentials;
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
+import com.squareup.okhttp.Credentials;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.Response;
+import hudson.AbortException;
+import hudson.model.Item;
+import hudson.model.Queue;
+import hudson.model.queue.Tasks;
+import hudson.security.ACL;
+import org.acegisecurity.Authentication;
+import org.jenkinsci.plugins.plaincredentials.StringCredentials;
+
+import java.io.IOException;
+
+/**
+ * Resolves the credentials of a generator job to the authorization header sent to TFS. Username and
+ * password credentials use basic authentication; secret text credentials hold a personal access token,
+ * which TFS takes as the password of basic authentication with an empty username.
+ * <p>
+ * Credentials are looked up by id once per scan, as the job's authentication, so the job can only use
+ * credentials it has access to, and a changed password or token is picked up by the next scan. The header
+ * is encoded once per scan and only kept by that scan's clients; nothing holds it once the scan is over.
+ */
+class TfsCredentials {
+
+    /** The kinds of credentials that can be picked for a generator job. */
+    static final CredentialsMatcher MATCHER = CredentialsMatchers.anyOf(
+            CredentialsMatchers.instanceOf(StandardUsernamePasswordCredentials.class),
+            CredentialsMatchers.instanceOf(StringCredentials.class));
+
+    private TfsCredentials() {
+    }
+
+    /**
+     * @param context the generator job
+     * @return the value of the authorization header
+     * @throws AbortException if the job has no access to credentials with that id
+     */
+    static String getAuthorization(Item context, String credentialsId, String teamProjectUrl) throws AbortException {
+        Authentication authentication = context instanceof Queue.Task ? Tasks.getAuthenticationOf((Queue.Task) context) : ACL.SYSTEM;
+        StandardCredentials credentials = CredentialsMatchers.firstOrNull(
+                CredentialsProvider.lookupCredentials(StandardCredentials.class, context, authentication,
+                        URIRequirementBuilder.fromUri(teamProjectUrl).build()),
+                CredentialsMatchers.allOf(CredentialsMatchers.withId(credentialsId), MATCHER));
+        if (credentials == null) {
+            throw new AbortException("No TFS credentials found with id " + credentialsId);
+        }
+        return encode(credentials);
+    }
+
+    private static String encode(StandardCredentials credentials) throws AbortException {
+        if (credentials instanceof StandardUsernamePasswordCredentials) {
+            StandardUsernamePasswordCredentials c = (StandardUsernamePasswordCredentials) credentials;
+            return Credentials.basic(c.getUsername(), c.getPassword().getPlainText());
+        }
+        if (credentials instanceof StringCredentials) {
+            return Credentials.basic("", ((StringCredentials) credentials).getSecret().getPlainText());
+        }
+        throw new AbortException("Credentials " + credentials.getId() + " are neither a username with password nor secret text");
+    }
+
+    /**
+     * Adds the authorization header to every request of a client, so it is encoded once per scan rather
+     * than once per request.
+     */
+    static class AuthInterceptor implements Interceptor {
+        private final String authorization;
+
+        AuthInterceptor(String authorization) {
+            this.authorization = authorization;
+        }
+
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            return chain.proceed(chain.request().newBuilder().header("authorization", authorization).build());
+        }
+    }
+}
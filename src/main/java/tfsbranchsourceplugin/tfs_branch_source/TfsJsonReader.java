@@ -0,0 +1,96 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams the {@code value} array of a TFS listing response, keeping only the fields the scanner needs.
+ * Refs listings of large repos run to tens of thousands of entries, so they are never held as a JSON tree.
+ */
+class TfsJsonReader {
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private interface ValueHandler {
+        void value(String[] fields);
+    }
+
+    private TfsJsonReader() {
+    }
+
+    static List<TfsRepo> readRepos(InputStream in) throws IOException {
+        final List<TfsRepo> repos = new ArrayList<>();
+        readValues(in, new String[]{"id", "name"}, new ValueHandler() {
+            @Override
+            public void value(String[] fields) {
+                repos.add(new TfsRepo(fields[0], fields[1]));
+            }
+        });
+        return repos;
+    }
+
+    static List<TfsRef> readRefs(InputStream in) throws IOException {
+        final List<TfsRef> refs = new ArrayList<>();
+        readValues(in, new String[]{"name", "objectId"}, new ValueHandler() {
+            @Override
+            public void value(String[] fields) {
+                refs.add(new TfsRef(fields[0], fields[1]));
+            }
+        });
+        return refs;
+    }
+
+    private static void readValues(InputStream in, String[] fieldNames, ValueHandler handler) throws IOException {
+        boolean hasValue = false;
+        try (JsonParser parser = FACTORY.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a JSON object from TFS");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("value".equals(name) && token == JsonToken.START_ARRAY) {
+                    hasValue = true;
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        handler.value(readFields(parser, fieldNames));
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        if (!hasValue) {
+            throw new IOException("TFS response has no value list");
+        }
+    }
+
+    private static String[] readFields(JsonParser parser, String[] fieldNames) throws IOException {
+        String[] fields = new String[fieldNames.length];
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            int index = indexOf(fieldNames, name);
+            if (index >= 0 && token.isScalarValue() && token != JsonToken.VALUE_NULL) {
+                fields[index] = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return fields;
+    }
+
+    private static int indexOf(String[] fieldNames, String name) {
+        for (int i = 0; i < fieldNames.length; i++) {
+            if (fieldNames[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
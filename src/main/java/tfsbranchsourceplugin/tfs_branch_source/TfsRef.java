@@ -0,0 +1,26 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+/**
+ * The fields of a TFS git ref that the scanner uses; everything else in the listing is dropped while parsing.
+ */
+class TfsRef {
+
+    private static final String HEADS_PREFIX = "refs/heads/";
+
+    /** Full ref name, eg. refs/heads/master. */
+    final String name;
+    /** Commit the ref points at. */
+    final String objectId;
+
+    TfsRef(String name, String objectId) {
+        this.name = name;
+        this.objectId = objectId;
+    }
+
+    /**
+     * The branch name without the refs/heads/ prefix.
+     */
+    String getBranchName() {
+        return name.startsWith(HEADS_PREFIX) ? name.substring(HEADS_PREFIX.length()) : name;
+    }
+}
@@ -0,0 +1,15 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+/**
+ * The fields of a TFS git repository that the scanner uses; everything else in the listing is dropped while parsing.
+ */
+class TfsRepo {
+
+    final String id;
+    final String name;
+
+    TfsRepo(String id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+}
@@ -0,0 +1,285 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import com.squareup.okhttp.*;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+import org.json.JSONException;
+import org.json.JSONTokener;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Issues authenticated REST calls against one TFS host. In-flight requests are capped per host by a
+ * semaphore, and paced by a {@link HostThrottle}, both shared by every scan on this master. Throttled
+ * (429), unavailable (5xx) and failed requests are retried with jittered exponential backoff. The
+ * latency, status and size of every response is recorded in the scan's {@link ScanMetrics} under the
+ * phase it was issued for.
+ */
+class TfsRestClient {
+
+    private static final ConcurrentMap<String, Semaphore> HOST_PERMITS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, HostThrottle> HOST_THROTTLES = new ConcurrentHashMap<>();
+    private static final MediaType JSON = MediaType.parse("application/json");
+
+    /**
+     * Turns a response into a value. The body is closed by the client once the reader returns.
+     */
+    interface BodyReader<T> {
+        T read(Response response) throws IOException;
+    }
+
+    static class Result<T> {
+        int code;
+        String etag;
+        boolean notModified;
+        T value;
+    }
+
+    /** Parses the whole body into an org.json tree, straight off the (transparently gunzipped) body. */
+    static final BodyReader<org.json.JSONObject> JSON_OBJECT = new BodyReader<org.json.JSONObject>() {
+        @Override
+        public org.json.JSONObject read(Response response) throws IOException {
+            try {
+                return new org.json.JSONObject(new JSONTokener(response.body().charStream()));
+            } catch (JSONException e) {
+                if (response.isSuccessful()) {
+                    throw e;
+                }
+                //Error pages aren't always JSON, callers treat an empty object as "not found"
+                return new org.json.JSONObject();
+            }
+        }
+    };
+
+    private final OkHttpClient client;
+    private final String host;
+    private final Semaphore hostPermits;
+    private final HostThrottle throttle;
+    private final int maxRetries;
+    private final ScanMetrics metrics;
+    private final AtomicInteger requestsIssued = new AtomicInteger();
+
+    /**
+     * @param client the shared client of the host, which gets an interceptor adding the authorization header
+     * @param requestsPerSecond the most requests per second sent to the host; the throttle may go lower
+     * @param maxRetries how often a transient failure is retried before the request fails
+     */
+    TfsRestClient(OkHttpClient client, String teamProjectUrl, String authorization, int maxRequestsPerHost,
+                  int requestsPerSecond, int maxRetries, ScanMetrics metrics) throws IOException {
+        //The clone shares the connection pool, so only the interceptor is per scan
+        this.client = client.clone();
+        this.client.interceptors().add(new TfsCredentials.AuthInterceptor(authorization));
+        this.metrics = metrics;
+        this.host = new URL(teamProjectUrl).getHost();
+        this.hostPermits = permitsFor(host, Math.max(1, maxRequestsPerHost));
+        this.throttle = throttleFor(host, requestsPerSecond);
+        this.maxRetries = Math.max(0, maxRetries);
+    }
+
+    private static Semaphore permitsFor(String host, int maxRequestsPerHost) {
+        Semaphore permits = HOST_PERMITS.get(host);
+        if (permits == null) {
+            HOST_PERMITS.putIfAbsent(host, new Semaphore(maxRequestsPerHost, true));
+            permits = HOST_PERMITS.get(host);
+        }
+        return permits;
+    }
+
+    private static HostThrottle throttleFor(String host, int requestsPerSecond) {
+        HostThrottle throttle = HOST_THROTTLES.get(host);
+        if (throttle == null) {
+            HOST_THROTTLES.putIfAbsent(host, new HostThrottle(host, requestsPerSecond));
+            throttle = HOST_THROTTLES.get(host);
+        }
+        return throttle;
+    }
+
+    /**
+     * Drops the per host request caps and throttles so that the next scan picks up a changed limit.
+     */
+    static void resetHostLimits() {
+        HOST_PERMITS.clear();
+        HOST_THROTTLES.clear();
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    int getRequestsIssued() {
+        return requestsIssued.get();
+    }
+
+    ScanMetrics getMetrics() {
+        return metrics;
+    }
+
+    org.json.JSONObject getJson(ScanPhase phase, String url) throws IOException {
+        return get(phase, url, null, JSON_OBJECT).value;
+    }
+
+    /**
+     * @param ifNoneMatch ETag from an earlier response, or null for an unconditional request
+     */
+    <T> Result<T> get(ScanPhase phase, String url, String ifNoneMatch, BodyReader<T> reader) throws IOException {
+        Request.Builder builder = new Request.Builder()
+                .url(url)
+                .addHeader("content-type", "application/json")
+                .addHeader("accept", "application/json");
+        if (ifNoneMatch != null) {
+            builder.addHeader("if-none-match", ifNoneMatch);
+        }
+        return execute(phase, builder.build(), ifNoneMatch, reader);
+    }
+
+    Result<org.json.JSONObject> postJson(ScanPhase phase, String url, org.json.JSONObject payload) throws IOException {
+        Request okRequest = new Request.Builder()
+                .url(url)
+                .addHeader("accept", "application/json")
+                .post(RequestBody.create(JSON, payload.toString()))
+                .build();
+        return execute(phase, okRequest, null, JSON_OBJECT);
+    }
+
+    private <T> Result<T> execute(ScanPhase phase, Request okRequest, String ifNoneMatch, BodyReader<T> reader) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            //A cancelled scan interrupts its workers, which stop here before their next call
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Scan cancelled before calling " + okRequest.urlString());
+            }
+            try {
+                throttle.acquire();
+                hostPermits.acquire();
+            } catch (InterruptedException e) {
+                throw (IOException) new InterruptedIOException("Interrupted while waiting to call " + host).initCause(e);
+            }
+            try {
+                Result<T> result = attempt(phase, okRequest, ifNoneMatch, reader, attempt < maxRetries);
+                if (result != null) {
+                    return result;
+                }
+            } finally {
+                hostPermits.release();
+            }
+
+            //Back off without holding a permit; a Retry-After from the server is enforced by the throttle
+            metrics.recordRetry(host);
+            try {
+                Thread.sleep(HostThrottle.backoffMillis(attempt));
+            } catch (InterruptedException e) {
+                throw (IOException) new InterruptedIOException("Interrupted while retrying " + okRequest.urlString()).initCause(e);
+            }
+        }
+    }
+
+    /**
+     * Sends the request once.
+     *
+     * @param retryable whether a transient failure may be retried
+     * @return the result, or null if the request failed transiently and should be retried
+     */
+    private <T> Result<T> attempt(ScanPhase phase, Request okRequest, String ifNoneMatch, BodyReader<T> reader, boolean retryable) throws IOException {
+        requestsIssued.incrementAndGet();
+        long start = System.nanoTime();
+        Response response;
+        try {
+            response = client.newCall(okRequest).execute();
+        } catch (IOException e) {
+            metrics.recordError(host);
+            metrics.recordLatency(phase, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            if (retryable) {
+                return null;
+            }
+            throttle.onFailure();
+            throw e;
+        }
+        throttle.onResponse(response);
+        CountingBody body = new CountingBody(response.body());
+        response = response.newBuilder().body(body).build();
+        try {
+            int code = response.code();
+            if (HostThrottle.isTransient(code)) {
+                metrics.recordResponse(host, code, 0);
+                if (retryable) {
+                    return null;
+                }
+                throttle.onFailure();
+                throw new IOException(String.format("HTTP %d from %s, giving up after %d retries", code, okRequest.urlString(), maxRetries));
+            }
+            throttle.onSuccess();
+            if (code == 401 || code == 403) {
+                //Every call would fail the same way, and an empty answer would read as "no Jenkinsfile"
+                metrics.recordResponse(host, code, 0);
+                throw new IOException(String.format("HTTP %d from %s, check the credentials", code, okRequest.urlString()));
+            }
+
+            Result<T> result = new Result<>();
+            result.code = code;
+            result.etag = response.header("ETag");
+            if (code == 304) {
+                result.notModified = true;
+                result.etag = ifNoneMatch;
+                metrics.recordResponse(host, code, 0);
+                return result;
+            }
+            try {
+                result.value = reader.read(response);
+            } catch (IOException | RuntimeException e) {
+                metrics.recordError(host);
+                throw e;
+            }
+            metrics.recordResponse(host, code, body.bytesRead);
+            return result;
+        } finally {
+            body.close();
+            metrics.recordLatency(phase, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * Counts the (decompressed) bytes read from a response body.
+     */
+    private static class CountingBody extends ResponseBody {
+        private final ResponseBody delegate;
+        private final BufferedSource source;
+        long bytesRead;
+
+        CountingBody(ResponseBody delegate) throws IOException {
+            this.delegate = delegate;
+            this.source = Okio.buffer(new ForwardingSource(delegate.source()) {
+                @Override
+                public long read(Buffer sink, long byteCount) throws IOException {
+                    long read = super.read(sink, byteCount);
+                    if (read > 0) {
+                        bytesRead += read;
+                    }
+                    return read;
+                }
+            });
+        }
+
+        @Override
+        public MediaType contentType() {
+            return delegate.contentType();
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return delegate.contentLength();
+        }
+
+        @Override
+        public BufferedSource source() {
+            return source;
+        }
+    }
+}
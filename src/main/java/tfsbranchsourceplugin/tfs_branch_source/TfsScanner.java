@@ -0,0 +1,620 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import com.squareup.okhttp.Response;
+import org.json.JSONArray;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scans a TFS team project for repos containing a Jenkinsfile. The repos are scanned by a
+ * {@link ScanQueue}, which may be shared with the scanners of other team projects; the branches of each
+ * repo are probed on the queue's second pool so repo tasks never wait on work queued behind themselves.
+ */
+class TfsScanner {
+
+    /** Hosts without the itemsbatch endpoint, which are probed one branch at a time from then on. */
+    private static final Set<String> BATCH_UNSUPPORTED_HOSTS = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private static final int BATCH_SIZE = 100;
+
+    private static final TfsRestClient.BodyReader<List<TfsRepo>> REPOS = new TfsRestClient.BodyReader<List<TfsRepo>>() {
+        @Override
+        public List<TfsRepo> read(Response response) throws IOException {
+            checkSuccessful(response);
+            return TfsJsonReader.readRepos(response.body().byteStream());
+        }
+    };
+
+    private static final TfsRestClient.BodyReader<RefsPage> REFS = new TfsRestClient.BodyReader<RefsPage>() {
+        @Override
+        public RefsPage read(Response response) throws IOException {
+            checkSuccessful(response);
+            return new RefsPage(TfsJsonReader.readRefs(response.body().byteStream()), response.header("x-ms-continuationtoken"));
+        }
+    };
+
+    private final TfsRestClient rest;
+    private final String teamProjectUrl;
+    private final String file;
+    private final JenkinsfileLookupStrategy lookupStrategy;
+    private final BranchFilter branchFilter;
+    private final ScanState previousState;
+    private final ScanState state = new ScanState();
+
+    private final AtomicInteger probesIssued = new AtomicInteger();
+    private final AtomicInteger probesSaved = new AtomicInteger();
+    private final AtomicInteger listingsNotModified = new AtomicInteger();
+    private final AtomicInteger batchesRejected = new AtomicInteger();
+
+    /**
+     * @param previousState what the last scan saw; an empty state forces a full rescan
+     */
+    TfsScanner(TfsRestClient rest, String teamProjectUrl, String file, ScanState previousState, JenkinsfileLookupStrategy lookupStrategy, BranchFilter branchFilter) {
+        this.rest = rest;
+        this.teamProjectUrl = teamProjectUrl;
+        this.file = file;
+        this.previousState = previousState;
+        this.lookupStrategy = lookupStrategy;
+        this.branchFilter = branchFilter;
+    }
+
+    /**
+     * Drops the per host request caps and remembered server capabilities so that the next scan
+     * picks up a changed limit or an upgraded server.
+     */
+    static void resetHostLimits() {
+        TfsRestClient.resetHostLimits();
+        BATCH_UNSUPPORTED_HOSTS.clear();
+    }
+
+    /**
+     * The state seen by this scan, to be persisted for the next one. Only repos that still exist are kept.
+     */
+    ScanState getState() {
+        return state;
+    }
+
+    String getTeamProjectUrl() {
+        return teamProjectUrl;
+    }
+
+    /**
+     * Prints how much the state of the last scan saved, once every repo of the team project is scanned.
+     */
+    void printSummary(PrintStream logger) {
+        logger.printf("%n%nScan cache: %d probes issued, %d probes saved, %d refs listings not modified%n",
+                probesIssued.get(), probesSaved.get(), listingsNotModified.get());
+        if (batchesRejected.get() > 0) {
+            logger.printf("%d itemsbatch requests were rejected, their branches were probed with one request each%n", batchesRejected.get());
+        }
+    }
+
+    /**
+     * Lists the team projects of a collection, a page at a time.
+     *
+     * @return the names of the team projects, in the order TFS lists them
+     */
+    static List<String> getTeamProjectNames(TfsRestClient rest, String collectionUrl) throws IOException {
+        List<String> names = new ArrayList<>();
+        int pageSize = 100;
+        int fetched;
+        do {
+            String url = String.format("%s/_apis/projects?stateFilter=WellFormed&$top=%d&$skip=%d&api-version=1.0", collectionUrl, pageSize, names.size());
+            org.json.JSONObject page = rest.getJson(ScanPhase.LIST_PROJECTS, url);
+            if (!page.has("value")) {
+                throw new IOException("Could not list the team projects of " + collectionUrl);
+            }
+            JSONArray projects = page.getJSONArray("value");
+            fetched = projects.length();
+            for (int i = 0; i < fetched; i++) {
+                names.add(projects.getJSONObject(i).getString("name"));
+            }
+        } while (fetched == pageSize);
+        return names;
+    }
+
+    RepoScanResult scanRepo(ExecutorService probePool, TfsRepo repo) throws IOException, InterruptedException {
+        return scanRepo(probePool, repo, null);
+    }
+
+    /**
+     * @param pushed branches updated by a push, with a null head for deleted ones. When the last scan of
+     *               the repo is known, they are applied on top of its branches instead of listing the
+     *               refs again, so only the pushed branches are probed.
+     */
+    RepoScanResult scanRepo(ExecutorService probePool, final TfsRepo repo, List<TfsRef> pushed) throws IOException, InterruptedException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream log = newPrintStream(buffer);
+        ScanState.RepoState cached = previousState.getRepo(repo.id);
+        ScanState.RepoState repoState = new ScanState.RepoState();
+
+        log.println("\n\n--Looking through repo for branches--");
+        log.println("Repo: " + repo.name);
+        BranchProbes probes = new BranchProbes(probePool, repo.id, cached, repoState);
+        if (pushed != null && cached != null) {
+            getBranchesAfterPush(log, cached, pushed, probes);
+        } else {
+            getBranchesForRepo(log, repo, cached, repoState, probes);
+        }
+
+        //The master listing doesn't depend on the branch probes, so fetch it alongside them unless master hasn't moved
+        ScanState.BranchState master = repoState.branches.get("refs/heads/master");
+        repoState.masterObjectId = master == null ? null : master.objectId;
+        final ByteArrayOutputStream masterBuffer = new ByteArrayOutputStream();
+        Future<List<String>> jenkinsfiles = null;
+        List<String> masterJenkinsfiles = null;
+        if (cached != null && repoState.masterObjectId != null && repoState.masterObjectId.equals(cached.masterObjectId)) {
+            masterJenkinsfiles = cached.jenkinsfiles;
+            probesSaved.incrementAndGet();
+        } else {
+            jenkinsfiles = probePool.submit(new Callable<List<String>>() {
+                @Override
+                public List<String> call() throws Exception {
+                    return getJenkinsfileTypesFromMasterBranch(newPrintStream(masterBuffer), repo);
+                }
+            });
+        }
+
+        boolean hasJenkinsfile = probes.finish(log);
+
+        if (jenkinsfiles != null) {
+            masterJenkinsfiles = get(jenkinsfiles);
+            log.print(masterBuffer.toString("UTF-8"));
+        }
+        repoState.jenkinsfiles = masterJenkinsfiles;
+        synchronized (state) {
+            state.putRepo(repo.id, repoState);
+        }
+        if (masterJenkinsfiles == null || masterJenkinsfiles.isEmpty()) {
+            log.println("\tNo .Jenkinsfiles found in master branch");
+        }
+        log.flush();
+        return new RepoScanResult(repo.id, repo.name, hasJenkinsfile, masterJenkinsfiles, buffer.toString("UTF-8"));
+    }
+
+    List<TfsRepo> getReposForTeamProject(PrintStream logger) throws IOException {
+        String listOfReposUrl = teamProjectUrl + "/_apis/git/repositories?api-version=1";
+        List<TfsRepo> repos = rest.get(ScanPhase.LIST_REPOS, listOfReposUrl, null, REPOS).value;
+        for (TfsRepo repo : repos) {
+            logger.println("Found repo: - " + repo.id + " - " + repo.name);
+        }
+        return repos;
+    }
+
+    /**
+     * Lists the branches of a repo, one listing per include prefix. Each page is handed to the probes
+     * as soon as it arrives, so probing early branches overlaps with fetching the later pages.
+     */
+    private void getBranchesForRepo(PrintStream logger, TfsRepo repo, ScanState.RepoState cached, ScanState.RepoState repoState, BranchProbes probes) throws IOException {
+        List<String> filters = new ArrayList<>();
+        if (branchFilter.includes.isEmpty()) {
+            filters.add("heads");
+        } else {
+            for (String include : branchFilter.includes) {
+                filters.add("heads/" + include);
+            }
+        }
+
+        //Only a listing made in one request can be made conditional on the previous scan's ETag
+        boolean conditional = !branchFilter.isPaged() && filters.size() == 1;
+        for (String filter : filters) {
+            String continuationToken = null;
+            do {
+                String ifNoneMatch = conditional && cached != null ? cached.refsETag : null;
+                TfsRestClient.Result<RefsPage> result = rest.get(ScanPhase.LIST_REFS, getRefsUrl(repo.id, filter, continuationToken), ifNoneMatch, REFS);
+                if (conditional) {
+                    repoState.refsETag = result.etag;
+                }
+                List<TfsRef> page;
+                if (result.notModified) {
+                    //Nothing moved since the last scan, so the cached heads are still current
+                    listingsNotModified.incrementAndGet();
+                    page = new ArrayList<>();
+                    for (Map.Entry<String, ScanState.BranchState> branch : cached.branches.entrySet()) {
+                        page.add(new TfsRef(branch.getKey(), branch.getValue().objectId));
+                    }
+                    continuationToken = null;
+                } else {
+                    page = result.value.refs;
+                    continuationToken = result.value.continuationToken;
+                }
+
+                List<TfsRef> branches = new ArrayList<>();
+                for (TfsRef branch : page) {
+                    if (!branchFilter.isExcluded(branch)) {
+                        logger.println("Found branch: " + branch.name);
+                        branches.add(branch);
+                    }
+                }
+                probes.addPage(branches);
+            } while (continuationToken != null);
+        }
+    }
+
+    /**
+     * The branches of the last scan with the pushed ones moved, added or removed. The refs listing ETag is
+     * not carried over, so the next full scan lists the refs again.
+     */
+    private void getBranchesAfterPush(PrintStream logger, ScanState.RepoState cached, List<TfsRef> pushed, BranchProbes probes) {
+        Map<String, String> heads = new LinkedHashMap<>();
+        for (Map.Entry<String, ScanState.BranchState> branch : cached.branches.entrySet()) {
+            heads.put(branch.getKey(), branch.getValue().objectId);
+        }
+        for (TfsRef ref : pushed) {
+            if (ref.objectId == null) {
+                heads.remove(ref.name);
+            } else {
+                heads.put(ref.name, ref.objectId);
+            }
+        }
+        logger.printf("Applying %d pushed branches to the branches of the last scan%n", pushed.size());
+        List<TfsRef> branches = new ArrayList<>();
+        for (Map.Entry<String, String> head : heads.entrySet()) {
+            TfsRef branch = new TfsRef(head.getKey(), head.getValue());
+            if (branchFilter.isIncluded(branch) && !branchFilter.isExcluded(branch)) {
+                logger.println("Found branch: " + branch.name);
+                branches.add(branch);
+            }
+        }
+        probes.addPage(branches);
+    }
+
+    private String getRefsUrl(String repoId, String filter, String continuationToken) throws IOException {
+        if (!branchFilter.isPaged()) {
+            return String.format("%s/_apis/git/repositories/%s/refs?filter=%s&api-version=1.0", teamProjectUrl, repoId, URLEncoder.encode(filter, "UTF-8"));
+        }
+        //$top and continuationToken on refs need api-version 5.0 (Azure DevOps Server 2019 and later)
+        String url = String.format("%s/_apis/git/repositories/%s/refs?filter=%s&$top=%d&api-version=5.0", teamProjectUrl, repoId, URLEncoder.encode(filter, "UTF-8"), branchFilter.pageSize);
+        if (continuationToken != null) {
+            url += "&continuationToken=" + URLEncoder.encode(continuationToken, "UTF-8");
+        }
+        return url;
+    }
+
+    /**
+     * Probes the branches of one repo as pages of the refs listing arrive. Branches whose head hasn't
+     * moved since the last scan reuse the previous answer instead of being probed. Once any branch has
+     * the file, probes that have not started yet are skipped and the remaining futures are cancelled.
+     */
+    private class BranchProbes {
+
+        private final ExecutorService probePool;
+        private final String repoId;
+        private final ScanState.RepoState cached;
+        private final ScanState.RepoState repoState;
+        private final boolean batched;
+        private final List<TfsRef> branches = new ArrayList<>();
+        private final List<ScanState.BranchState> branchStates = new ArrayList<>();
+        private final List<Probe> probes = new ArrayList<>();
+        private final AtomicBoolean found = new AtomicBoolean();
+        private String cachedHit;
+        private int reused;
+
+        BranchProbes(ExecutorService probePool, String repoId, ScanState.RepoState cached, ScanState.RepoState repoState) {
+            this.probePool = probePool;
+            this.repoId = repoId;
+            this.cached = cached;
+            this.repoState = repoState;
+            this.batched = lookupStrategy == JenkinsfileLookupStrategy.ITEMS_BATCH && !BATCH_UNSUPPORTED_HOSTS.contains(rest.getHost());
+        }
+
+        void addPage(List<TfsRef> page) {
+            List<Integer> unknown = new ArrayList<>();
+            for (TfsRef branch : page) {
+                if (repoState.branches.containsKey(branch.name)) {
+                    //Overlapping include prefixes list some branches more than once
+                    continue;
+                }
+                ScanState.BranchState previous = cached == null ? null : cached.branches.get(branch.name);
+                ScanState.BranchState branchState = new ScanState.BranchState(branch.objectId, null);
+                if (previous != null && previous.hasJenkinsfile != null && branch.objectId != null && branch.objectId.equals(previous.objectId)) {
+                    branchState.hasJenkinsfile = previous.hasJenkinsfile;
+                    reused++;
+                    if (previous.hasJenkinsfile && cachedHit == null) {
+                        cachedHit = branch.getBranchName();
+                    }
+                } else {
+                    unknown.add(branches.size());
+                }
+                branches.add(branch);
+                branchStates.add(branchState);
+                repoState.branches.put(branch.name, branchState);
+            }
+            if (cachedHit == null) {
+                probes.addAll(submit(unknown, batched));
+            }
+        }
+
+        /**
+         * Submits probes for the given branches, up to {@link #BATCH_SIZE} per itemsbatch request or one per request.
+         *
+         * @return the probes, in branch order
+         */
+        private List<Probe> submit(List<Integer> indexes, final boolean batch) {
+            List<Probe> submitted = new ArrayList<>();
+            int size = batch ? BATCH_SIZE : 1;
+            for (int from = 0; from < indexes.size(); from += size) {
+                List<Integer> chunk = indexes.subList(from, Math.min(from + size, indexes.size()));
+                final List<String> branchNames = new ArrayList<>();
+                for (int j : chunk) {
+                    branchNames.add(branches.get(j).getBranchName());
+                }
+                submitted.add(new Probe(chunk, batch, probePool.submit(new Callable<boolean[]>() {
+                    @Override
+                    public boolean[] call() throws Exception {
+                        if (found.get()) {
+                            return null;
+                        }
+                        probesIssued.incrementAndGet();
+                        boolean[] hasFile;
+                        if (!batch) {
+                            hasFile = new boolean[]{checkBranchForFile(repoId, branchNames.get(0))};
+                        } else {
+                            hasFile = checkBranchesForFileInBatch(repoId, branchNames);
+                        }
+                        for (boolean hit : hasFile) {
+                            if (hit) {
+                                found.set(true);
+                            }
+                        }
+                        return hasFile;
+                    }
+                })));
+            }
+            return submitted;
+        }
+
+        /**
+         * Waits for the probes in branch order and reports whether any branch has the file.
+         */
+        boolean finish(PrintStream logger) throws IOException, InterruptedException {
+            probesSaved.addAndGet(reused);
+            if (reused > 0) {
+                logger.printf("\tReusing last scan for %d unchanged branches%n", reused);
+            }
+            if (cachedHit != null) {
+                cancelFrom(0);
+                logger.printf("\t--Branch: %s is unchanged and had a jenkinsfile--%n", cachedHit);
+                logger.println("\tFOUND JENKINS FILE!");
+                return true;
+            }
+
+            try {
+                return collect(logger);
+            } catch (BatchUnsupportedException e) {
+                //Only a missing endpoint switches the host over; other rejections fall back for their batch only
+                BATCH_UNSUPPORTED_HOSTS.add(rest.getHost());
+                logger.printf("\titemsbatch is not supported by %s (%s), probing one branch at a time%n", rest.getHost(), e.getMessage());
+                cancelFrom(0);
+                probes.clear();
+                found.set(false);
+                List<Integer> unknown = new ArrayList<>();
+                for (int j = 0; j < branchStates.size(); j++) {
+                    if (branchStates.get(j).hasJenkinsfile == null) {
+                        unknown.add(j);
+                    }
+                }
+                probes.addAll(submit(unknown, false));
+                return collect(logger);
+            }
+        }
+
+        private boolean collect(PrintStream logger) throws IOException, InterruptedException {
+            for (int p = 0; p < probes.size(); p++) {
+                Probe probe = probes.get(p);
+                boolean[] hasFile;
+                try {
+                    hasFile = get(probe.future);
+                } catch (BatchRejectedException e) {
+                    //Eg. a branch deleted since the refs listing fails the whole batch; the endpoint itself works.
+                    //The batch's branches are probed in its place, in parallel on the probe pool
+                    batchesRejected.incrementAndGet();
+                    probes.remove(p);
+                    probes.addAll(p, submit(probe.indexes, false));
+                    p--;
+                    continue;
+                }
+                if (hasFile == null) {
+                    continue;
+                }
+                for (int k = 0; k < probe.indexes.size(); k++) {
+                    branchStates.get(probe.indexes.get(k)).hasJenkinsfile = hasFile[k];
+                }
+                if (probe.batch) {
+                    logger.printf("\t--Looking through %d branches for a jenkinsfile--%n", probe.indexes.size());
+                } else {
+                    logger.printf("\t--Looking through branch: %s for a jenkinsfile--%n", branches.get(probe.indexes.get(0)).getBranchName());
+                }
+                for (int k = 0; k < probe.indexes.size(); k++) {
+                    if (hasFile[k]) {
+                        if (probe.batch) {
+                            logger.printf("\tFOUND JENKINS FILE on branch: %s!%n", branches.get(probe.indexes.get(k)).getBranchName());
+                        } else {
+                            logger.println("\tFOUND JENKINS FILE!");
+                        }
+                        //Once we have found the file we are looking for, we don't need to check the rest of the branches
+                        cancelFrom(p + 1);
+                        return true;
+                    }
+                }
+                logger.println("\tNone found");
+            }
+            return false;
+        }
+
+        private void cancelFrom(int from) {
+            for (Probe probe : probes.subList(from, probes.size())) {
+                probe.future.cancel(false);
+            }
+        }
+    }
+
+    private static class Probe {
+        final List<Integer> indexes;
+        final boolean batch;
+        final Future<boolean[]> future;
+
+        Probe(List<Integer> indexes, boolean batch, Future<boolean[]> future) {
+            this.indexes = indexes;
+            this.batch = batch;
+            this.future = future;
+        }
+    }
+
+    private static class RefsPage {
+        final List<TfsRef> refs;
+        /** Token for the next page, or null on the last page. */
+        final String continuationToken;
+
+        RefsPage(List<TfsRef> refs, String continuationToken) {
+            this.refs = refs;
+            this.continuationToken = continuationToken;
+        }
+    }
+
+    private boolean[] checkBranchesForFileInBatch(String repoId, List<String> branchNames) throws IOException {
+        JSONArray descriptors = new JSONArray();
+        for (String branchName : branchNames) {
+            descriptors.put(new org.json.JSONObject()
+                    .put("path", "/")
+                    .put("version", branchName)
+                    .put("versionType", "branch")
+                    .put("recursionLevel", "OneLevel"));
+        }
+        org.json.JSONObject payload = new org.json.JSONObject()
+                .put("itemDescriptors", descriptors)
+                .put("includeContentMetadata", false);
+        String itemsBatchUrl = String.format("%s/_apis/git/repositories/%s/itemsbatch?api-version=1.0", teamProjectUrl, repoId);
+        TfsRestClient.Result<org.json.JSONObject> result = rest.postJson(ScanPhase.PROBE_JENKINSFILE, itemsBatchUrl, payload);
+        if (isEndpointMissing(result.code, result.value)) {
+            throw new BatchUnsupportedException("HTTP " + result.code);
+        }
+        if (result.code >= 400 && result.code < 500) {
+            throw new BatchRejectedException("HTTP " + result.code + ": " + result.value.optString("message"));
+        }
+        if (!result.value.has("value")) {
+            throw new IOException(String.format("Unexpected itemsbatch response from %s: HTTP %d", rest.getHost(), result.code));
+        }
+
+        //One listing per descriptor, in the order they were sent
+        JSONArray listings = result.value.getJSONArray("value");
+        boolean[] hasFile = new boolean[branchNames.size()];
+        for (int k = 0; k < branchNames.size() && k < listings.length(); k++) {
+            JSONArray items = listings.getJSONArray(k);
+            for (int i = 0; i < items.length(); i++) {
+                if (("/" + file).equalsIgnoreCase(items.getJSONObject(i).optString("path"))) {
+                    hasFile[k] = true;
+                }
+            }
+        }
+        return hasFile;
+    }
+
+    /**
+     * Tells a server without the itemsbatch route from one that rejected the branches of a batch. Servers
+     * without the route answer 405 or 501, or 404 with an error page or a resource-not-found error, while
+     * git errors about the request (TF401xxx, {@code Git*Exception}) mean the endpoint is there.
+     */
+    static boolean isEndpointMissing(int code, org.json.JSONObject error) {
+        if (code == 405 || code == 501) {
+            return true;
+        }
+        if (code != 404) {
+            return false;
+        }
+        String typeKey = error.optString("typeKey");
+        String message = error.optString("message");
+        return !typeKey.startsWith("Git") && !message.startsWith("TF401");
+    }
+
+    private boolean checkBranchForFile(String repoId, String branchName) throws IOException {
+        String jenkinsFileMetadataUrl = String.format("%s/_apis/git/repositories/%s/items?api-version=1.0&version=%s&scopepath=/%s", teamProjectUrl, repoId, branchName, file);
+        org.json.JSONObject obj = rest.getJson(ScanPhase.PROBE_JENKINSFILE, jenkinsFileMetadataUrl);
+        return obj.has("value") && obj.getJSONArray("value").length() > 0;
+    }
+
+    private List<String> getJenkinsfileTypesFromMasterBranch(PrintStream logger, TfsRepo repo) throws IOException {
+        List<String> jenkinsfiles = new ArrayList<String>();
+        logger.println("\t--Searching for master branch--");
+        String listOfFiles = String.format("%s/_apis/git/repositories/%s/items?api-version-1.0&version=master&scopepath=/&recursionLevel=OneLevel", teamProjectUrl, repo.id);
+        org.json.JSONObject filesJson = rest.getJson(ScanPhase.LIST_MASTER_ITEMS, listOfFiles);
+        if (filesJson.has("value")) {
+            JSONArray files = filesJson.getJSONArray("value");
+            for (int j = 0; j < files.length(); j++) {
+                org.json.JSONObject file = files.getJSONObject(j);
+                if(file.get("path").toString().endsWith(".Jenkinsfile")) {
+                    jenkinsfiles.add(file.get("path").toString().substring(1));
+                }
+            }
+            return jenkinsfiles;
+        }
+        else {
+            logger.println("\tRepo has no master branch");
+            return null;
+        }
+    }
+
+    private static void checkSuccessful(Response response) throws IOException {
+        if (!response.isSuccessful()) {
+            throw new IOException(String.format("HTTP %d from %s", response.code(), response.request().urlString()));
+        }
+    }
+
+    /**
+     * The server has no itemsbatch endpoint, so no batch will ever succeed on this host.
+     */
+    private static class BatchUnsupportedException extends IOException {
+        BatchUnsupportedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The server rejected one batch, eg. because a branch in it can no longer be resolved.
+     */
+    private static class BatchRejectedException extends IOException {
+        BatchRejectedException(String message) {
+            super(message);
+        }
+    }
+
+    static <T> T get(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (CancellationException e) {
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    static PrintStream newPrintStream(ByteArrayOutputStream buffer) {
+        try {
+            return new PrintStream(buffer, true, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
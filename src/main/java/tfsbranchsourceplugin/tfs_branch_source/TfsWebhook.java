@@ -0,0 +1,235 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import hudson.Extension;
+import hudson.model.Project;
+import hudson.model.UnprotectedRootAction;
+import hudson.security.ACL;
+import hudson.security.csrf.CrumbExclusion;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.LogTaskListener;
+import hudson.util.NamingThreadFactory;
+import hudson.util.Secret;
+import jenkins.model.Jenkins;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.apache.commons.codec.binary.Base64;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Receives TFS service hook events at {@code /tfs-webhook/} for {@code git.push}, {@code git.repo.created}
+ * and {@code git.repo.deleted}. Instead of rerunning a full scan, the affected repo is rescanned by every
+ * generator job that covers its team project, and only the repo's multibranch job is indexed.
+ * <p>
+ * Requests must carry the shared secret from the global configuration, either in an {@code X-Tfs-Secret}
+ * header or as the password of basic authentication; without a secret the endpoint is disabled. Events
+ * for the same repo are debounced, so a burst of pushes leads to one rescan. Disabled generator jobs are
+ * skipped, and an event for a team project that is being scanned is retried once the scan is likely done,
+ * without holding up the events of other team projects.
+ */
+@Extension
+public class TfsWebhook implements UnprotectedRootAction {
+
+    static final String URL_NAME = "tfs-webhook";
+    /** How long an event waits for a scan of its team project before it is tried again. */
+    static final int BUSY_RETRY_SECONDS = 30;
+    private static final Logger LOGGER = Logger.getLogger(TfsWebhook.class.getName());
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "TFS webhook"));
+    /** Repo id to the rescan waiting for its quiet period to pass. */
+    private final ConcurrentMap<String, ScheduledFuture<?>> pending = new ConcurrentHashMap<>();
+    /** Repo id to the events received for it during the quiet period, combined. */
+    private final ConcurrentMap<String, RepoEvent> pendingEvents = new ConcurrentHashMap<>();
+    /** Generator job and repo id to the events waiting for a scan of the job's team project to finish. */
+    private final ConcurrentMap<String, RepoEvent> retries = new ConcurrentHashMap<>();
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return null;
+    }
+
+    @Override
+    public String getUrlName() {
+        return URL_NAME;
+    }
+
+    @RequirePOST
+    public HttpResponse doIndex(StaplerRequest req) throws IOException {
+        MultiBranchPipelineBuilder.DescriptorImpl descriptor = Jenkins.getInstance().getDescriptorByType(MultiBranchPipelineBuilder.DescriptorImpl.class);
+        String secret = Secret.toString(descriptor.getWebhookSecret());
+        if (secret.isEmpty()) {
+            return HttpResponses.notFound();
+        }
+        if (!isAuthorized(req, secret)) {
+            return HttpResponses.status(HttpServletResponse.SC_FORBIDDEN);
+        }
+
+        RepoEvent event;
+        try {
+            event = RepoEvent.parse(new JSONObject(new JSONTokener(req.getReader())));
+        } catch (JSONException | IllegalArgumentException e) {
+            return HttpResponses.error(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+        }
+        if (event == null) {
+            //Other event types are acknowledged so TFS doesn't disable the subscription
+            return HttpResponses.ok();
+        }
+        LOGGER.log(Level.FINE, "Received {0}", event);
+        schedule(event, descriptor.getWebhookQuietPeriod());
+        return HttpResponses.ok();
+    }
+
+    /**
+     * Schedules a rescan of the event's repo once no more events for it arrived for the quiet period.
+     */
+    private synchronized void schedule(RepoEvent event, int quietPeriod) {
+        final String repoId = event.repoId;
+        ScheduledFuture<?> previous = pending.get(repoId);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+        //Still there unless the earlier rescan already took it; a rescan waiting for the lock leaves it to this one
+        RepoEvent previousEvent = pendingEvents.get(repoId);
+        if (previousEvent != null) {
+            event = previousEvent.followedBy(event);
+        }
+        pendingEvents.put(repoId, event);
+        final ScheduledFuture<?>[] self = new ScheduledFuture<?>[1];
+        self[0] = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                RepoEvent combined;
+                synchronized (TfsWebhook.this) {
+                    if (!pending.remove(repoId, self[0])) {
+                        return;
+                    }
+                    combined = pendingEvents.remove(repoId);
+                }
+                process(combined);
+            }
+        }, quietPeriod, TimeUnit.SECONDS);
+        pending.put(repoId, self[0]);
+    }
+
+    private void process(RepoEvent event) {
+        SecurityContext previous = ACL.impersonate(ACL.SYSTEM);
+        try {
+            for (Project<?, ?> project : Jenkins.getInstance().getAllItems(Project.class)) {
+                if (project.getBuildersList().get(MultiBranchPipelineBuilder.class) != null) {
+                    apply(project, event);
+                }
+            }
+        } finally {
+            SecurityContextHolder.setContext(previous);
+        }
+    }
+
+    /**
+     * Applies an event for one generator job. When the job's team project is being scanned, the event is
+     * tried again later instead of waiting, so the events of other team projects go ahead meanwhile.
+     */
+    private void apply(Project<?, ?> project, RepoEvent event) {
+        MultiBranchPipelineBuilder builder = project.getBuildersList().get(MultiBranchPipelineBuilder.class);
+        if (builder == null || project.isDisabled()) {
+            return;
+        }
+        final String key = project.getFullName() + "\n" + event.repoId;
+        synchronized (this) {
+            //Events for the repo must apply in order, so a later one joins the event waiting to be retried
+            RepoEvent waiting = retries.get(key);
+            if (waiting != null) {
+                retries.put(key, waiting.followedBy(event));
+                return;
+            }
+        }
+        try {
+            MultiBranchPipelineBuilder.EventOutcome outcome = builder.onRepoEvent(project, event, new LogTaskListener(LOGGER, Level.INFO));
+            if (outcome == MultiBranchPipelineBuilder.EventOutcome.APPLIED) {
+                LOGGER.log(Level.INFO, "Applied {0} for {1}", new Object[]{event, project.getFullName()});
+            } else if (outcome == MultiBranchPipelineBuilder.EventOutcome.BUSY) {
+                LOGGER.log(Level.FINE, "{0} is scanning, retrying {1} in {2} seconds", new Object[]{project.getFullName(), event, BUSY_RETRY_SECONDS});
+                retries.put(key, event);
+                final String fullName = project.getFullName();
+                executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        retry(key, fullName);
+                    }
+                }, BUSY_RETRY_SECONDS, TimeUnit.SECONDS);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Could not apply " + event + " for " + project.getFullName(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void retry(String key, String fullName) {
+        RepoEvent event;
+        synchronized (this) {
+            event = retries.remove(key);
+        }
+        SecurityContext previous = ACL.impersonate(ACL.SYSTEM);
+        try {
+            Project<?, ?> project = Jenkins.getInstance().getItemByFullName(fullName, Project.class);
+            if (event != null && project != null) {
+                apply(project, event);
+            }
+        } finally {
+            SecurityContextHolder.setContext(previous);
+        }
+    }
+
+    private static boolean isAuthorized(StaplerRequest req, String secret) {
+        String provided = req.getHeader("X-Tfs-Secret");
+        String authorization = req.getHeader("Authorization");
+        if (provided == null && authorization != null && authorization.startsWith("Basic ")) {
+            String credentials = new String(Base64.decodeBase64(authorization.substring(6).trim()), StandardCharsets.UTF_8);
+            provided = credentials.substring(credentials.indexOf(':') + 1);
+        }
+        return provided != null && MessageDigest.isEqual(provided.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Service hooks can't send a crumb; the shared secret protects the endpoint instead.
+     */
+    @Extension
+    public static class CrumbExclusionImpl extends CrumbExclusion {
+        @Override
+        public boolean process(HttpServletRequest req, HttpServletResponse resp, FilterChain chain) throws IOException, ServletException {
+            String pathInfo = req.getPathInfo();
+            if (pathInfo != null && (pathInfo.equals("/" + URL_NAME) || pathInfo.startsWith("/" + URL_NAME + "/"))) {
+                chain.doFilter(req, resp);
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import hudson.Util;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A job config.xml template with {@code #token#} placeholders. Templates are split into literal and
+ * token segments once, validated, and cached by where they come from, so rendering a job is a straight
+ * copy of pre-encoded bytes plus the XML escaped token values. A source whose text changed is parsed
+ * again and replaces its cache entry; a template file is only read again when its size or modification
+ * time changed.
+ */
+class XmlTemplate {
+
+    static final String REPO = "repo";
+    static final String GUID = "guid";
+    static final String CREDENTIALS_ID = "credentialsId";
+    static final String URL = "url";
+    static final String FILE_TYPE = "fileType";
+    static final String TRIGGER_SPEC = "triggerSpec";
+    static final String TRIGGER_INTERVAL = "triggerInterval";
+    static final String DESCRIPTION = "description";
+
+    private static final List<String> TOKENS = Arrays.asList(REPO, GUID, CREDENTIALS_ID, URL, FILE_TYPE, TRIGGER_SPEC, TRIGGER_INTERVAL, DESCRIPTION);
+    /** Template source, eg. a folder template file, to the template last read from it. */
+    private static final ConcurrentMap<String, XmlTemplate> CACHE = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Buffer> BUFFER = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            return new Buffer();
+        }
+    };
+
+    /** Literal bytes for even segments, token names for odd ones. */
+    private final List<byte[]> literals = new ArrayList<>();
+    private final List<String> tokens = new ArrayList<>();
+    private final String text;
+    private final String digest;
+    /** Modification time and size of the file the template was read from, or -1 when it was not read from a file. */
+    private final long lastModified;
+    private final long length;
+
+    private XmlTemplate(String template, long lastModified, long length) {
+        this.text = template;
+        this.digest = Util.getDigestOf(template);
+        this.lastModified = lastModified;
+        this.length = length;
+        int start = 0;
+        int open = template.indexOf('#');
+        while (open >= 0) {
+            int close = template.indexOf('#', open + 1);
+            if (close < 0) {
+                break;
+            }
+            String token = template.substring(open + 1, close);
+            if (TOKENS.contains(token)) {
+                literals.add(template.substring(start, open).getBytes(StandardCharsets.UTF_8));
+                tokens.add(token);
+                start = close + 1;
+                open = template.indexOf('#', start);
+            } else {
+                //Not a token, the closing # may still open the next one
+                open = close;
+            }
+        }
+        literals.add(template.substring(start).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the parsed template of a source, parsing and validating it when the source is new or its
+     * text changed since the last call.
+     *
+     * @param source where the template comes from, eg. the path of a folder template file
+     * @throws IllegalArgumentException if the template is not well formed XML
+     */
+    static XmlTemplate of(String source, String template) {
+        XmlTemplate parsed = CACHE.get(source);
+        if (parsed == null || !parsed.text.equals(template)) {
+            parsed = parse(template);
+            CACHE.put(source, parsed);
+        }
+        return parsed;
+    }
+
+    /**
+     * Returns the parsed template in a file, cached by the file's path. The file is only read, parsed and
+     * validated again when its modification time or size changed since the last call.
+     *
+     * @throws IllegalArgumentException if the template is not well formed XML
+     */
+    static XmlTemplate of(File file) throws IOException {
+        String source = file.getPath();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        XmlTemplate parsed = CACHE.get(source);
+        if (parsed == null || parsed.lastModified != lastModified || parsed.length != length) {
+            parsed = new XmlTemplate(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8), lastModified, length);
+            parsed.validate();
+            CACHE.put(source, parsed);
+        }
+        return parsed;
+    }
+
+    /**
+     * Parses and validates a template without caching it, eg. to check a template being edited.
+     *
+     * @throws IllegalArgumentException if the template is not well formed XML
+     */
+    static XmlTemplate parse(String template) {
+        XmlTemplate parsed = new XmlTemplate(template, -1, -1);
+        parsed.validate();
+        return parsed;
+    }
+
+    /**
+     * Drops the cached template of a source that no longer exists, eg. a deleted folder template file.
+     */
+    static void forget(String source) {
+        CACHE.remove(source);
+    }
+
+    boolean hasToken(String token) {
+        return tokens.contains(token);
+    }
+
+    /**
+     * A digest of the template and the token values, which changes whenever a job rendered from them would.
+     */
+    String fingerprint(Map<String, String> values) {
+        StringBuilder input = new StringBuilder(digest);
+        for (Map.Entry<String, String> value : new TreeMap<>(values).entrySet()) {
+            input.append('\n').append(value.getKey()).append('=').append(value.getValue());
+        }
+        return Util.getDigestOf(input.toString());
+    }
+
+    private void validate() {
+        Map<String, String> sample = new HashMap<>();
+        for (String token : TOKENS) {
+            sample.put(token, token);
+        }
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.newDocumentBuilder().parse(new InputSource(new StringReader(new String(render(sample), StandardCharsets.UTF_8))));
+        } catch (SAXException | IOException | ParserConfigurationException e) {
+            throw new IllegalArgumentException("Job template is not valid XML: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Renders the template with the given token values. The job is rendered into a reusable buffer of
+     * this thread, so only the returned copy is allocated per job.
+     *
+     * @param values token name to value; tokens without a value are left empty
+     * @return the UTF-8 encoded config.xml
+     */
+    byte[] render(Map<String, String> values) {
+        Buffer buffer = BUFFER.get();
+        buffer.reset();
+        for (int i = 0; i < tokens.size(); i++) {
+            buffer.write(literals.get(i), 0, literals.get(i).length);
+            String value = values.get(tokens.get(i));
+            if (value != null) {
+                buffer.writeEscaped(value);
+            }
+        }
+        byte[] last = literals.get(literals.size() - 1);
+        buffer.write(last, 0, last.length);
+        return buffer.toByteArray();
+    }
+
+    private static class Buffer extends ByteArrayOutputStream {
+
+        Buffer() {
+            super(8192);
+        }
+
+        void writeEscaped(String value) {
+            StringBuilder escaped = new StringBuilder(value.length() + 16);
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '&': escaped.append("&amp;"); break;
+                    case '<': escaped.append("&lt;"); break;
+                    case '>': escaped.append("&gt;"); break;
+                    case '"': escaped.append("&quot;"); break;
+                    case '\'': escaped.append("&apos;"); break;
+                    default: escaped.append(c);
+                }
+            }
+            byte[] bytes = escaped.toString().getBytes(StandardCharsets.UTF_8);
+            write(bytes, 0, bytes.length);
+        }
+    }
+}
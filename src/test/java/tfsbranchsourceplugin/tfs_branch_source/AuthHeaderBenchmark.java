@@ -0,0 +1,78 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import com.squareup.okhttp.Connection;
+import com.squareup.okhttp.Credentials;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+
+/**
+ * The per request cost of authenticating a TFS call: building a refs request with the header encoded
+ * for every request, as before {@link TfsCredentials}, against building it without the header and
+ * letting the interceptor add the header encoded once per scan. The interceptor's figure also counts the
+ * stub response the chain answers with. Run by {@link JmhBenchmarkTest}.
+ */
+@State(Scope.Thread)
+public class AuthHeaderBenchmark {
+
+    private static final String URL = "https://tfs.example.com/tfs/DefaultCollection/Fabrikam/_apis/git/repositories/"
+            + "5f0c6d1e-8a8b-3a9e-9a6e-3c1f1d0b9a77/refs?filter=heads/&api-version=2.0";
+
+    private final String username = "builder";
+    private final String password = "a-personal-access-token-of-fifty-two-characters-long";
+    private final StubChain chain = new StubChain();
+    private Interceptor interceptor;
+
+    @Setup
+    public void createInterceptor() {
+        interceptor = new TfsCredentials.AuthInterceptor(Credentials.basic(username, password));
+    }
+
+    @Benchmark
+    public Object encodePerRequest() {
+        return new Request.Builder()
+                .url(URL)
+                .addHeader("content-type", "application/json")
+                .addHeader("accept", "application/json")
+                .addHeader("authorization", Credentials.basic(username, password))
+                .build();
+    }
+
+    @Benchmark
+    public Object interceptor() throws IOException {
+        Request request = new Request.Builder()
+                .url(URL)
+                .addHeader("content-type", "application/json")
+                .addHeader("accept", "application/json")
+                .build();
+        chain.request = request;
+        return interceptor.intercept(chain).request();
+    }
+
+    /** Answers the request the interceptor passes on, instead of sending it. */
+    private static class StubChain implements Interceptor.Chain {
+        private Request request;
+
+        @Override
+        public Request request() {
+            return request;
+        }
+
+        @Override
+        public Response proceed(Request request) {
+            return new Response.Builder().request(request).protocol(Protocol.HTTP_1_1).code(200).build();
+        }
+
+        @Override
+        public Connection connection() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Collects the numbers of a benchmark and writes them as JSON to the directory given by the
+ * benchmark.reportDirectory system property, where CI archives them.
+ */
+class BenchmarkReport {
+
+    private final String name;
+    private final JSONObject results = new JSONObject();
+
+    BenchmarkReport(String name) {
+        this.name = name;
+    }
+
+    static File getDirectory() {
+        File directory = new File(System.getProperty("benchmark.reportDirectory", "target/benchmarks"));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Could not create " + directory);
+        }
+        return directory;
+    }
+
+    static int intProperty(String name, int defaultValue) {
+        return Integer.parseInt(System.getProperty(name, String.valueOf(defaultValue)));
+    }
+
+    static long longProperty(String name, long defaultValue) {
+        return Long.parseLong(System.getProperty(name, String.valueOf(defaultValue)));
+    }
+
+    static double doubleProperty(String name, double defaultValue) {
+        return Double.parseDouble(System.getProperty(name, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * @param scenario eg. "fullScan"
+     * @param metric eg. "requests"
+     */
+    BenchmarkReport put(String scenario, String metric, Object value) {
+        JSONObject numbers = results.optJSONObject(scenario);
+        if (numbers == null) {
+            numbers = new JSONObject();
+            results.put(scenario, numbers);
+        }
+        numbers.put(metric, value);
+        return this;
+    }
+
+    BenchmarkReport put(String setting, Object value) {
+        results.put(setting, value);
+        return this;
+    }
+
+    long getLong(String scenario, String metric) {
+        return results.getJSONObject(scenario).getLong(metric);
+    }
+
+    void write() throws IOException {
+        File file = new File(getDirectory(), name + ".json");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(results.toString(2));
+        }
+        System.out.printf("--%s--%n%s%nWritten to %s%n", name, results.toString(2), file);
+    }
+
+    /**
+     * Polls the heap while a scenario runs, since the peak usage of the memory pools also counts
+     * garbage the collector hadn't gotten to yet.
+     */
+    static class HeapSampler implements AutoCloseable {
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private final Thread thread;
+        private volatile boolean running = true;
+        private volatile long peak;
+
+        HeapSampler() {
+            System.gc();
+            peak = memory.getHeapMemoryUsage().getUsed();
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (running) {
+                        peak = Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+                        try {
+                            Thread.sleep(10);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }, "Heap sampler");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        long getPeakBytes() {
+            return peak;
+        }
+
+        @Override
+        public void close() throws InterruptedException {
+            running = false;
+            thread.join();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BranchFilterTest {
+
+    private static TfsRef branch(String name) {
+        return new TfsRef("refs/heads/" + name, "0a1b2c");
+    }
+
+    @Test
+    public void parsesPrefixes() {
+        BranchFilter filter = BranchFilter.parse(" release/, hotfix/\nmaster ", "users/,,pr/", 500);
+        assertEquals(Arrays.asList("release/", "hotfix/", "master"), filter.includes);
+        assertEquals(Arrays.asList("users/", "pr/"), filter.excludes);
+        assertEquals(500, filter.pageSize);
+        assertTrue(filter.isPaged());
+    }
+
+    @Test
+    public void emptyFilterListsEverything() {
+        BranchFilter filter = BranchFilter.parse(null, "  ", -1);
+        assertEquals(Collections.emptyList(), filter.includes);
+        assertEquals(Collections.emptyList(), filter.excludes);
+        assertEquals(0, filter.pageSize);
+        assertFalse(filter.isPaged());
+        assertTrue(filter.isIncluded(branch("users/dev1/topic")));
+        assertFalse(filter.isExcluded(branch("users/dev1/topic")));
+    }
+
+    @Test
+    public void matchesBranchNamePrefixes() {
+        BranchFilter filter = BranchFilter.parse("release/ master", "release/old", 0);
+        assertTrue(filter.isIncluded(branch("master")));
+        assertTrue(filter.isIncluded(branch("release/1.0")));
+        assertFalse(filter.isIncluded(branch("feature/release/1.0")));
+        assertTrue(filter.isExcluded(branch("release/old-1.0")));
+        assertFalse(filter.isExcluded(branch("release/1.0")));
+    }
+
+    @Test
+    public void matchesRefsWithoutTheHeadsPrefix() {
+        BranchFilter filter = BranchFilter.parse("", "users/", 0);
+        assertTrue(filter.isExcluded(new TfsRef("users/dev1/topic", "0a1b2c")));
+    }
+}
@@ -0,0 +1,86 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.OkHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the same full scan several times with a new OkHttpClient per scan, as before clients were shared,
+ * and with the client the descriptor keeps for the host, and reports the connections opened and the wall
+ * time per scan. The fake TFS speaks plain HTTP, so connections stand in for the TLS handshakes each of
+ * them would cost against a real server. Runs with -Pbenchmark.
+ */
+public class ConnectionReuseBenchmarkTest {
+
+    private static final int SCANS = BenchmarkReport.intProperty("tfs.benchmark.scans", 5);
+    private static final int REPOS = BenchmarkReport.intProperty("tfs.benchmark.repos", 200);
+    private static final int BRANCHES = BenchmarkReport.intProperty("tfs.benchmark.branches", 10);
+    private static final long LATENCY_MILLIS = BenchmarkReport.longProperty("tfs.benchmark.latencyMillis", 5);
+    private static final int SCAN_THREADS = BenchmarkReport.intProperty("tfs.benchmark.scanThreads", 8);
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public FakeTfs tfs = new FakeTfs().repos(REPOS).branches(BRANCHES).latency(LATENCY_MILLIS);
+
+    @Before
+    @After
+    public void resetHostLimits() {
+        TfsScanner.resetHostLimits();
+    }
+
+    @Test
+    public void sharedClientReusesConnections() throws Exception {
+        j.timeout = 0;
+        MultiBranchPipelineBuilder.DescriptorImpl descriptor = MultiBranchPipelineBuilderTest.configure(j, SCAN_THREADS);
+        BenchmarkReport report = new BenchmarkReport("connectionReuse")
+                .put("scans", SCANS)
+                .put("repos", REPOS)
+                .put("branches", REPOS * BRANCHES)
+                .put("latencyMillis", LATENCY_MILLIS)
+                .put("scanThreads", SCAN_THREADS)
+                .put("connectionPoolSize", descriptor.getConnectionPoolSize());
+
+        ConnectionPool.getDefault().evictAll();
+        scan(report, "clientPerScan", null);
+        ConnectionPool.getDefault().evictAll();
+        scan(report, "sharedClient", descriptor.getHttpClient(tfs.getHost()));
+        report.write();
+
+        assertThat(report.getLong("sharedClient", "connections"), lessThanOrEqualTo(report.getLong("clientPerScan", "connections")));
+    }
+
+    /**
+     * @param client the client of every scan, or null for a new one per scan
+     */
+    private void scan(BenchmarkReport report, String scenario, OkHttpClient client) throws Exception {
+        tfs.resetCounts();
+        long start = System.nanoTime();
+        for (int i = 0; i < SCANS; i++) {
+            ScanMetrics metrics = new ScanMetrics();
+            TfsRestClient rest = FakeTfs.newRestClient(client != null ? client : new OkHttpClient(), tfs.getTeamProjectUrl(), metrics);
+            //A new scan state every time, so every scan probes every branch
+            TfsScanner scanner = new TfsScanner(rest, tfs.getTeamProjectUrl(), "Jenkinsfile", new ScanState(),
+                    JenkinsfileLookupStrategy.ITEMS_BATCH, BranchFilter.parse(null, null, 0));
+            ScanQueue queue = new ScanQueue(SCAN_THREADS, metrics);
+            queue.scan(Collections.singletonList(scanner), TfsScanner.newPrintStream(new ByteArrayOutputStream()));
+            assertTrue(queue.getFailures().toString(), queue.getFailures().isEmpty());
+        }
+        report.put(scenario, "wallMillisPerScan", (System.nanoTime() - start) / 1000000 / SCANS)
+                .put(scenario, "requests", tfs.getRequestCount())
+                .put(scenario, "connections", tfs.getConnectionCount())
+                .put(scenario, "connectionsPerScan", (double) tfs.getConnectionCount() / SCANS);
+    }
+}
@@ -0,0 +1,671 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import com.squareup.okhttp.Credentials;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.rules.ExternalResource;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-process TFS server for tests and benchmarks, serving the REST calls a scan makes: the team
+ * projects of the collection, the repos of a team project, refs listings (with ETags and paging), items
+ * and itemsbatch lookups.
+ * <p>
+ * Team projects are generated when the server starts, at whatever scale is configured: repos per team
+ * project, branches per repo, the share of repos with a Jenkinsfile on one of their branches and the share
+ * with a .Jenkinsfile on master. Latency and a rate of 503 responses can be injected. The same seed
+ * always generates the same team projects. Requests and new connections are counted.
+ */
+class FakeTfs extends ExternalResource {
+
+    static final String COLLECTION_PATH = "/tfs/DefaultCollection";
+    static final String PROJECTS = "projects";
+    static final String REPOSITORIES = "repositories";
+    static final String REFS = "refs";
+    static final String ITEMS = "items";
+    static final String ITEMS_BATCH = "itemsbatch";
+    static final String USERNAME = "builder";
+    static final String PASSWORD = "secret";
+
+    private final MockWebServer server = new MockWebServer();
+    private final List<String> projectNames = new ArrayList<>(Arrays.asList("Fabrikam"));
+    private int repos = 10;
+    private int branches = 5;
+    private double jenkinsfileDensity = 0.5;
+    private double pipelineDensity = 0.1;
+    private long latencyMillis;
+    private double errorRate;
+    private boolean itemsBatch = true;
+    private boolean rejectBatches;
+    private long seed = 42;
+    private OkHttpClient client;
+
+    /** Team project name to its repos. */
+    private final Map<String, List<Repo>> projects = new LinkedHashMap<>();
+    private final Map<String, Repo> reposById = new HashMap<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger pushes = new AtomicInteger();
+    private final ConcurrentMap<String, AtomicInteger> requestsByCall = new ConcurrentHashMap<>();
+
+    static class Repo {
+        final String id;
+        final String name;
+        final List<Branch> branches = new ArrayList<>();
+        /** Top level .Jenkinsfiles on master. */
+        final List<String> pipelines = new ArrayList<>();
+
+        Repo(String id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        boolean hasJenkinsfile() {
+            for (Branch branch : branches) {
+                if (branch.hasJenkinsfile) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        Branch getBranch(String name) {
+            for (Branch branch : branches) {
+                if (branch.name.equals(name)) {
+                    return branch;
+                }
+            }
+            return null;
+        }
+    }
+
+    static class Branch {
+        /** Without the refs/heads/ prefix. */
+        final String name;
+        String objectId;
+        boolean hasJenkinsfile;
+
+        Branch(String name, String objectId) {
+            this.name = name;
+            this.objectId = objectId;
+        }
+    }
+
+    /** Names of the team projects; the first one is the default. */
+    FakeTfs projects(String... names) {
+        projectNames.clear();
+        projectNames.addAll(Arrays.asList(names));
+        return this;
+    }
+
+    /** Repos per team project. */
+    FakeTfs repos(int repos) {
+        this.repos = repos;
+        return this;
+    }
+
+    /** Branches per repo, master included. */
+    FakeTfs branches(int branches) {
+        this.branches = Math.max(1, branches);
+        return this;
+    }
+
+    /** Share of repos with a Jenkinsfile on one of their branches. */
+    FakeTfs jenkinsfileDensity(double density) {
+        this.jenkinsfileDensity = density;
+        return this;
+    }
+
+    /** Share of repos with a .Jenkinsfile on master. */
+    FakeTfs pipelineDensity(double density) {
+        this.pipelineDensity = density;
+        return this;
+    }
+
+    /** Added to every response. */
+    FakeTfs latency(long millis) {
+        this.latencyMillis = millis;
+        return this;
+    }
+
+    /** Share of requests answered with a 503. */
+    FakeTfs errorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /** Whether the server has the itemsbatch endpoint, like TFS 2015 and later. */
+    FakeTfs itemsBatch(boolean itemsBatch) {
+        this.itemsBatch = itemsBatch;
+        return this;
+    }
+
+    /** Fails every itemsbatch request with a git error, as for a branch deleted since the listing. */
+    FakeTfs rejectBatches(boolean rejectBatches) {
+        this.rejectBatches = rejectBatches;
+        return this;
+    }
+
+    FakeTfs seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    @Override
+    protected void before() throws IOException {
+        start();
+    }
+
+    @Override
+    protected void after() {
+        stop();
+    }
+
+    void start() throws IOException {
+        generate();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                return FakeTfs.this.dispatch(request);
+            }
+        });
+        server.start();
+    }
+
+    void stop() {
+        if (client != null) {
+            client.getConnectionPool().evictAll();
+        }
+        try {
+            server.shutdown();
+        } catch (IOException e) {
+            //Only happens when the server is already down
+        }
+    }
+
+    private void generate() {
+        Random random = new Random(seed);
+        for (String project : projectNames) {
+            List<Repo> projectRepos = new ArrayList<>();
+            for (int i = 0; i < repos; i++) {
+                String name = String.format("repo-%04d", i);
+                Repo repo = new Repo(UUID.nameUUIDFromBytes((project + "/" + name).getBytes(StandardCharsets.UTF_8)).toString(), name);
+                for (int b = 0; b < branches; b++) {
+                    repo.branches.add(new Branch(branchName(b), objectId(repo.id, branchName(b), 0)));
+                }
+                if (random.nextDouble() < jenkinsfileDensity) {
+                    repo.branches.get(random.nextInt(branches)).hasJenkinsfile = true;
+                }
+                if (random.nextDouble() < pipelineDensity) {
+                    repo.pipelines.add("deploy.Jenkinsfile");
+                }
+                projectRepos.add(repo);
+                reposById.put(repo.id, repo);
+            }
+            projects.put(project, projectRepos);
+        }
+    }
+
+    /**
+     * Spreads the branches over the namespaces big repos have, so branch filters have something to filter.
+     */
+    private static String branchName(int index) {
+        if (index == 0) {
+            return "master";
+        }
+        switch (index % 4) {
+            case 1: return "feature/f-" + index;
+            case 2: return "users/dev" + index % 7 + "/topic-" + index;
+            case 3: return "release/" + index + ".0";
+            default: return "bugfix/b-" + index;
+        }
+    }
+
+    private static String objectId(String repoId, String branchName, int version) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest((repoId + "/" + branchName + "/" + version).getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    String getCollectionUrl() {
+        return "http://" + server.getHostName() + ":" + server.getPort() + COLLECTION_PATH;
+    }
+
+    String getTeamProjectUrl() {
+        return getTeamProjectUrl(projectNames.get(0));
+    }
+
+    String getTeamProjectUrl(String project) {
+        try {
+            return getCollectionUrl() + "/" + URLEncoder.encode(project, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    String getHost() {
+        return server.getHostName();
+    }
+
+    /**
+     * A client for the default team project with its own connection pool, as the plugin's descriptor
+     * would hand out, and a rate limit high enough not to get in the way.
+     */
+    TfsRestClient newRestClient(ScanMetrics metrics) throws IOException {
+        if (client == null) {
+            client = new OkHttpClient();
+            client.setConnectionPool(new com.squareup.okhttp.ConnectionPool(16, 60000));
+        }
+        return newRestClient(client, getTeamProjectUrl(), metrics);
+    }
+
+    static TfsRestClient newRestClient(OkHttpClient client, String teamProjectUrl, ScanMetrics metrics) throws IOException {
+        return new TfsRestClient(client, teamProjectUrl, Credentials.basic(USERNAME, PASSWORD), 16, 100000, 4, metrics);
+    }
+
+    List<Repo> getRepos() {
+        return getRepos(projectNames.get(0));
+    }
+
+    List<Repo> getRepos(String project) {
+        return projects.get(project);
+    }
+
+    Repo getRepo(String name) {
+        for (Repo repo : getRepos()) {
+            if (repo.name.equals(name)) {
+                return repo;
+            }
+        }
+        throw new IllegalArgumentException("No repo " + name);
+    }
+
+    int countReposWithJenkinsfile(String project) {
+        int count = 0;
+        for (Repo repo : getRepos(project)) {
+            if (repo.hasJenkinsfile()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    int countPipelines(String project) {
+        int count = 0;
+        for (Repo repo : getRepos(project)) {
+            count += repo.pipelines.size();
+        }
+        return count;
+    }
+
+    /**
+     * Moves a branch to a new commit, optionally adding or removing its Jenkinsfile.
+     *
+     * @return the branch as a push event would report it
+     */
+    synchronized TfsRef push(String repoName, String branchName, boolean hasJenkinsfile) {
+        Repo repo = getRepo(repoName);
+        Branch branch = repo.getBranch(branchName);
+        if (branch == null) {
+            branch = new Branch(branchName, null);
+            repo.branches.add(branch);
+        }
+        branch.objectId = objectId(repo.id, branchName, pushes.incrementAndGet());
+        branch.hasJenkinsfile = hasJenkinsfile;
+        return new TfsRef("refs/heads/" + branchName, branch.objectId);
+    }
+
+    /**
+     * @return the branch as a push event would report its deletion
+     */
+    synchronized TfsRef deleteBranch(String repoName, String branchName) {
+        Repo repo = getRepo(repoName);
+        repo.branches.remove(repo.getBranch(branchName));
+        return new TfsRef("refs/heads/" + branchName, null);
+    }
+
+    /** Every request received, including those answered with an injected error. */
+    int getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @param call one of {@link #PROJECTS}, {@link #REPOSITORIES}, {@link #REFS}, {@link #ITEMS} or {@link #ITEMS_BATCH}
+     */
+    int getRequestCount(String call) {
+        AtomicInteger count = requestsByCall.get(call);
+        return count == null ? 0 : count.get();
+    }
+
+    /** Connections opened by clients, each of which would cost a TLS handshake against a real server. */
+    int getConnectionCount() {
+        return connections.get();
+    }
+
+    void resetCounts() {
+        requests.set(0);
+        connections.set(0);
+        requestsByCall.clear();
+    }
+
+    private MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+        requests.incrementAndGet();
+        if (request.getSequenceNumber() == 0) {
+            connections.incrementAndGet();
+        }
+        if (latencyMillis > 0) {
+            Thread.sleep(latencyMillis);
+        }
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            return new MockResponse().setResponseCode(503).setBody("Service Unavailable");
+        }
+        if (request.getHeader("Authorization") == null) {
+            return new MockResponse().setResponseCode(401).setBody("Unauthorized");
+        }
+        try {
+            return route(request);
+        } catch (RuntimeException | UnsupportedEncodingException e) {
+            return gitError(500, "InvalidArgumentValueException", e.toString());
+        }
+    }
+
+    private MockResponse route(RecordedRequest request) throws UnsupportedEncodingException {
+        String path = request.getPath();
+        int q = path.indexOf('?');
+        Map<String, String> query = parseQuery(q < 0 ? "" : path.substring(q + 1));
+        path = q < 0 ? path : path.substring(0, q);
+        if (!path.startsWith(COLLECTION_PATH + "/")) {
+            return notFound();
+        }
+        String[] segments = path.substring(COLLECTION_PATH.length() + 1).split("/");
+        if (segments.length == 2 && segments[0].equals("_apis") && segments[1].equals(PROJECTS)) {
+            return projects(query);
+        }
+        if (segments.length < 4 || !segments[1].equals("_apis") || !segments[2].equals("git") || !segments[3].equals(REPOSITORIES)) {
+            return notFound();
+        }
+        String project = URLDecoder.decode(segments[0], "UTF-8");
+        List<Repo> projectRepos = projects.get(project);
+        if (projectRepos == null) {
+            return gitError(404, "ProjectDoesNotExistWithNameException", "TF200016: The following project does not exist: " + project);
+        }
+        if (segments.length == 4) {
+            return repositories(project, projectRepos);
+        }
+        if (segments.length != 6) {
+            return notFound();
+        }
+        Repo repo = reposById.get(segments[4]);
+        if (repo == null) {
+            return gitError(404, "GitRepositoryNotFoundException", "TF401019: The Git repository with name or identifier " + segments[4] + " does not exist");
+        }
+        switch (segments[5]) {
+            case REFS:
+                return refs(request, project, repo, query);
+            case ITEMS:
+                return items(repo, query);
+            case ITEMS_BATCH:
+                return itemsBatch(request, repo);
+            default:
+                return notFound();
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        for (String param : query.split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"), URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private void count(String call) {
+        AtomicInteger count = requestsByCall.get(call);
+        if (count == null) {
+            requestsByCall.putIfAbsent(call, new AtomicInteger());
+            count = requestsByCall.get(call);
+        }
+        count.incrementAndGet();
+    }
+
+    private MockResponse projects(Map<String, String> query) {
+        count(PROJECTS);
+        int top = query.containsKey("$top") ? Integer.parseInt(query.get("$top")) : 100;
+        int skip = query.containsKey("$skip") ? Integer.parseInt(query.get("$skip")) : 0;
+        JSONArray value = new JSONArray();
+        for (String name : projectNames.subList(Math.min(skip, projectNames.size()), Math.min(skip + top, projectNames.size()))) {
+            value.put(new JSONObject()
+                    .put("id", UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8)).toString())
+                    .put("name", name)
+                    .put("url", getCollectionUrl() + "/_apis/projects/" + name)
+                    .put("state", "wellFormed"));
+        }
+        return json(new JSONObject().put("count", value.length()).put("value", value).toString());
+    }
+
+    private MockResponse repositories(String project, List<Repo> projectRepos) {
+        count(REPOSITORIES);
+        String teamProjectUrl = getTeamProjectUrl(project);
+        StringBuilder json = new StringBuilder("{\"value\":[");
+        for (int i = 0; i < projectRepos.size(); i++) {
+            Repo repo = projectRepos.get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":").append(JSONObject.quote(repo.id))
+                    .append(",\"name\":").append(JSONObject.quote(repo.name))
+                    .append(",\"url\":").append(JSONObject.quote(getCollectionUrl() + "/_apis/git/repositories/" + repo.id))
+                    .append(",\"project\":{\"id\":").append(JSONObject.quote(UUID.nameUUIDFromBytes(project.getBytes(StandardCharsets.UTF_8)).toString()))
+                    .append(",\"name\":").append(JSONObject.quote(project))
+                    .append(",\"state\":\"wellFormed\"}")
+                    .append(",\"defaultBranch\":\"refs/heads/master\"")
+                    .append(",\"remoteUrl\":").append(JSONObject.quote(teamProjectUrl + "/_git/" + repo.name))
+                    .append('}');
+        }
+        json.append("],\"count\":").append(projectRepos.size()).append('}');
+        return json(json.toString());
+    }
+
+    private MockResponse refs(RecordedRequest request, String project, Repo repo, Map<String, String> query) {
+        count(REFS);
+        String prefix = "refs/" + (query.containsKey("filter") ? query.get("filter") : "");
+        List<TfsRef> matching = new ArrayList<>();
+        synchronized (this) {
+            for (Branch branch : repo.branches) {
+                String name = "refs/heads/" + branch.name;
+                if (name.startsWith(prefix)) {
+                    matching.add(new TfsRef(name, branch.objectId));
+                }
+            }
+        }
+        String repoUrl = getTeamProjectUrl(project) + "/_apis/git/repositories/" + repo.id;
+
+        if (!query.containsKey("$top")) {
+            StringBuilder heads = new StringBuilder();
+            for (TfsRef ref : matching) {
+                heads.append(ref.name).append(' ').append(ref.objectId).append('\n');
+            }
+            String etag = "\"" + objectId(repo.id, heads.toString(), 0) + "\"";
+            if (etag.equals(request.getHeader("If-None-Match"))) {
+                return new MockResponse().setResponseCode(304).setHeader("ETag", etag);
+            }
+            return json(refsJson(repoUrl, matching)).setHeader("ETag", etag);
+        }
+
+        int top = Integer.parseInt(query.get("$top"));
+        int from = query.containsKey("continuationToken") ? Integer.parseInt(query.get("continuationToken")) : 0;
+        int to = Math.min(from + top, matching.size());
+        MockResponse response = json(refsJson(repoUrl, matching.subList(Math.min(from, to), to)));
+        if (to < matching.size()) {
+            response.setHeader("x-ms-continuationtoken", String.valueOf(to));
+        }
+        return response;
+    }
+
+    /**
+     * A refs listing as TFS sends it, with the creator and url of each ref that the scanner skips.
+     */
+    static String refsJson(String repoUrl, List<TfsRef> refs) {
+        StringBuilder json = new StringBuilder(refs.size() * 420 + 32).append("{\"value\":[");
+        for (int i = 0; i < refs.size(); i++) {
+            TfsRef ref = refs.get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"name\":").append(JSONObject.quote(ref.name))
+                    .append(",\"objectId\":\"").append(ref.objectId).append('"')
+                    .append(",\"creator\":{\"displayName\":\"Build Agent\",\"url\":\"https://tfs.example.com/_apis/Identities/5e5a2ad3-6ee6-4ce9-9e6d-3a1ec5b3e2d4\"")
+                    .append(",\"id\":\"5e5a2ad3-6ee6-4ce9-9e6d-3a1ec5b3e2d4\",\"uniqueName\":\"CORP\\\\svc-build\"")
+                    .append(",\"imageUrl\":\"https://tfs.example.com/_api/_common/identityImage?id=5e5a2ad3-6ee6-4ce9-9e6d-3a1ec5b3e2d4\"}")
+                    .append(",\"url\":").append(JSONObject.quote(repoUrl + "/refs?filter=" + ref.name.substring("refs/".length())))
+                    .append('}');
+        }
+        return json.append("],\"count\":").append(refs.size()).append('}').toString();
+    }
+
+    /**
+     * A synthetic refs listing of a monorepo with many user and pull request branches, for benchmarks.
+     */
+    static String refsJson(int count) {
+        List<TfsRef> refs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String name = i == 0 ? "refs/heads/master" : "refs/heads/" + branchName(i);
+            refs.add(new TfsRef(name, objectId("monorepo", name, 0)));
+        }
+        return refsJson("https://tfs.example.com/tfs/DefaultCollection/Fabrikam/_apis/git/repositories/monorepo", refs);
+    }
+
+    private MockResponse items(Repo repo, Map<String, String> query) {
+        count(ITEMS);
+        String version = query.get("version");
+        String scopePath = query.get("scopepath");
+        JSONArray value;
+        synchronized (this) {
+            Branch branch = repo.getBranch(version);
+            if (branch == null) {
+                return unresolvable(version);
+            }
+            value = rootItems(repo, branch);
+        }
+        if ("/".equals(scopePath)) {
+            return json(new JSONObject().put("count", value.length()).put("value", value).toString());
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (value.getJSONObject(i).getString("path").equalsIgnoreCase(scopePath)) {
+                JSONArray item = new JSONArray().put(value.getJSONObject(i));
+                return json(new JSONObject().put("count", 1).put("value", item).toString());
+            }
+        }
+        return gitError(404, "GitItemNotFoundException", "TF401174: The item '" + scopePath + "' could not be found in the repository");
+    }
+
+    private MockResponse itemsBatch(RecordedRequest request, Repo repo) {
+        count(ITEMS_BATCH);
+        if (!itemsBatch) {
+            //Servers before TFS 2015 have no such route, and IIS answers with its own page
+            return notFound();
+        }
+        if (rejectBatches) {
+            return gitError(404, "GitItemNotFoundException", "TF401174: The item '/' could not be found in the repository");
+        }
+        JSONArray descriptors = new JSONObject(request.getBody().readUtf8()).getJSONArray("itemDescriptors");
+        JSONArray value = new JSONArray();
+        synchronized (this) {
+            for (int i = 0; i < descriptors.length(); i++) {
+                String version = descriptors.getJSONObject(i).getString("version");
+                Branch branch = repo.getBranch(version);
+                if (branch == null) {
+                    //One bad descriptor fails the whole batch
+                    return unresolvable(version);
+                }
+                value.put(rootItems(repo, branch));
+            }
+        }
+        return json(new JSONObject().put("count", value.length()).put("value", value).toString());
+    }
+
+    private static JSONArray rootItems(Repo repo, Branch branch) {
+        JSONArray items = new JSONArray()
+                .put(item(branch, "/", true))
+                .put(item(branch, "/README.md", false))
+                .put(item(branch, "/src", true));
+        if (branch.hasJenkinsfile) {
+            items.put(item(branch, "/Jenkinsfile", false));
+        }
+        if (branch.name.equals("master")) {
+            for (String pipeline : repo.pipelines) {
+                items.put(item(branch, "/" + pipeline, false));
+            }
+        }
+        return items;
+    }
+
+    private static JSONObject item(Branch branch, String path, boolean folder) {
+        JSONObject item = new JSONObject()
+                .put("objectId", objectId(branch.objectId, path, 0))
+                .put("gitObjectType", folder ? "tree" : "blob")
+                .put("commitId", branch.objectId)
+                .put("path", path);
+        if (folder) {
+            item.put("isFolder", true);
+        }
+        return item;
+    }
+
+    private static MockResponse unresolvable(String version) {
+        return gitError(404, "GitUnresolvableToCommitException", "TF401175: The version descriptor <Branch: " + version + "> could not be resolved to a version commit");
+    }
+
+    private static MockResponse gitError(int code, String typeKey, String message) {
+        return json(new JSONObject()
+                .put("$id", "1")
+                .put("message", message)
+                .put("typeName", "Microsoft.TeamFoundation.Git.Server." + typeKey)
+                .put("typeKey", typeKey)
+                .put("errorCode", 0)
+                .put("eventId", 3000)
+                .toString()).setResponseCode(code);
+    }
+
+    private static MockResponse notFound() {
+        return new MockResponse().setResponseCode(404).setHeader("Content-Type", "text/html").setBody("<html><body><h2>404 - File or directory not found.</h2></body></html>");
+    }
+
+    private static MockResponse json(String body) {
+        return new MockResponse().setHeader("Content-Type", "application/json; charset=utf-8").setBody(body);
+    }
+}
@@ -0,0 +1,85 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import com.cloudbees.hudson.plugins.folder.Folder;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.multibranch.WorkflowMultiBranchProject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GeneratedJobMarkerTest {
+
+    private static final String SOURCE = "http://tfs/tfs/DefaultCollection/Fabrikam/_git/app";
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void roundTripsOnPipelineJobs() throws Exception {
+        WorkflowJob job = j.jenkins.createProject(WorkflowJob.class, "app deploy");
+        new GeneratedJobMarker(SOURCE, "app deploy", "0123456789abcdef").write(job);
+        GeneratedJobMarker marker = GeneratedJobMarker.read(job);
+        assertEquals(SOURCE, marker.source);
+        assertEquals("app deploy", marker.name);
+        assertEquals("0123456789abcdef", marker.fingerprint);
+        assertTrue(marker.isOn(job));
+
+        new GeneratedJobMarker(SOURCE, "app deploy", "fedcba9876543210").write(job);
+        assertEquals("fedcba9876543210", GeneratedJobMarker.read(job).fingerprint);
+        assertEquals(1, job.getAllProperties().size());
+    }
+
+    @Test
+    public void roundTripsOnMultibranchJobs() throws Exception {
+        WorkflowMultiBranchProject job = j.jenkins.createProject(WorkflowMultiBranchProject.class, "app");
+        new GeneratedJobMarker(SOURCE, "app", "0123456789abcdef").write(job);
+        assertEquals("0123456789abcdef", GeneratedJobMarker.read(job).fingerprint);
+    }
+
+    @Test
+    public void survivesEditsByHand() throws Exception {
+        WorkflowJob job = j.jenkins.createProject(WorkflowJob.class, "app deploy");
+        new GeneratedJobMarker(SOURCE, "app deploy", "0123456789abcdef").write(job);
+        job.setDescription("Owned by the payments team");
+        job = j.configRoundtrip(job);
+        assertEquals(SOURCE, GeneratedJobMarker.read(job).source);
+
+        WorkflowMultiBranchProject mbp = j.jenkins.createProject(WorkflowMultiBranchProject.class, "app");
+        new GeneratedJobMarker(SOURCE, "app", "0123456789abcdef").write(mbp);
+        mbp = j.configRoundtrip(mbp);
+        assertEquals(SOURCE, GeneratedJobMarker.read(mbp).source);
+    }
+
+    @Test
+    public void copiesAreMadeByHand() throws Exception {
+        Folder folder = j.jenkins.createProject(Folder.class, "Fabrikam");
+        WorkflowJob job = folder.createProject(WorkflowJob.class, "app deploy");
+        new GeneratedJobMarker(SOURCE, "app deploy", "0123456789abcdef").write(job);
+        assertNull(GeneratedJobMarker.read(folder.copy(job, "app deploy copy")));
+
+        WorkflowMultiBranchProject mbp = folder.createProject(WorkflowMultiBranchProject.class, "app");
+        new GeneratedJobMarker(SOURCE, "app", "0123456789abcdef").write(mbp);
+        assertNull(GeneratedJobMarker.read(folder.copy(mbp, "app2")));
+    }
+
+    @Test
+    public void renamedJobsAreMadeByHand() throws Exception {
+        WorkflowJob job = j.jenkins.createProject(WorkflowJob.class, "app deploy");
+        new GeneratedJobMarker(SOURCE, "app deploy", "0123456789abcdef").write(job);
+        job.renameTo("app deploy (old)");
+        assertFalse(GeneratedJobMarker.read(job).isOn(job));
+    }
+
+    @Test
+    public void handMadeJobsHaveNoMarker() throws Exception {
+        WorkflowJob job = j.jenkins.createProject(WorkflowJob.class, "app deploy");
+        job.setDescription(GeneratedJobMarker.describe(SOURCE));
+        assertNull(GeneratedJobMarker.read(job));
+        assertNull(GeneratedJobMarker.read(j.createFreeStyleProject()));
+    }
+}
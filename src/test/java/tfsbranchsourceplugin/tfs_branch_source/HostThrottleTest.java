@@ -0,0 +1,129 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HostThrottleTest {
+
+    private static Response response(int code, String... headers) {
+        Response.Builder builder = new Response.Builder()
+                .request(new Request.Builder().url("http://tfs.example.com/").build())
+                .protocol(Protocol.HTTP_1_1)
+                .code(code);
+        for (int i = 0; i < headers.length; i += 2) {
+            builder.header(headers[i], headers[i + 1]);
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void transientCodes() {
+        for (int code : new int[]{429, 500, 502, 503, 504}) {
+            assertTrue(String.valueOf(code), HostThrottle.isTransient(code));
+        }
+        for (int code : new int[]{200, 304, 400, 401, 403, 404, 501}) {
+            assertFalse(String.valueOf(code), HostThrottle.isTransient(code));
+        }
+    }
+
+    @Test
+    public void backoffIsJitteredAndCapped() {
+        for (int i = 0; i < 100; i++) {
+            assertThat(HostThrottle.backoffMillis(0), allOf(greaterThanOrEqualTo(250L), lessThanOrEqualTo(500L)));
+            assertThat(HostThrottle.backoffMillis(3), allOf(greaterThanOrEqualTo(2000L), lessThanOrEqualTo(4000L)));
+            assertThat(HostThrottle.backoffMillis(30), allOf(greaterThanOrEqualTo(15000L), lessThanOrEqualTo(30000L)));
+        }
+    }
+
+    @Test
+    public void retryAfter() {
+        long now = System.currentTimeMillis();
+        assertEquals(0, HostThrottle.getRetryAfterMillis(response(429), now));
+        assertEquals(3000, HostThrottle.getRetryAfterMillis(response(429, "Retry-After", "3"), now));
+        assertEquals(0, HostThrottle.getRetryAfterMillis(response(429, "Retry-After", "soon"), now));
+
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        String inTenSeconds = format.format(new Date(now + 10000));
+        assertThat(HostThrottle.getRetryAfterMillis(response(503, "Retry-After", inTenSeconds), now),
+                allOf(greaterThanOrEqualTo(9000L), lessThanOrEqualTo(10000L)));
+        String past = format.format(new Date(now - 10000));
+        assertEquals(0, HostThrottle.getRetryAfterMillis(response(503, "Retry-After", past), now));
+    }
+
+    @Test
+    public void pacesRequests() throws Exception {
+        HostThrottle throttle = new HostThrottle("tfs.example.com", 10);
+        //The bucket starts full, so the first ten go through at once
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            throttle.acquire();
+        }
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), lessThan(90L));
+        for (int i = 0; i < 5; i++) {
+            throttle.acquire();
+        }
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), greaterThanOrEqualTo(400L));
+    }
+
+    @Test
+    public void retryAfterPausesTheHost() throws Exception {
+        HostThrottle throttle = new HostThrottle("tfs.example.com", 1000);
+        throttle.onResponse(response(429, "Retry-After", "1"));
+        long start = System.nanoTime();
+        throttle.acquire();
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), greaterThanOrEqualTo(900L));
+    }
+
+    @Test
+    public void throttledResponsesSlowDown() throws Exception {
+        HostThrottle throttle = new HostThrottle("tfs.example.com", 8);
+        throttle.acquire();
+        //Halved to 4 per second and the burst dropped, so the next two requests take about half a second
+        throttle.onResponse(response(503));
+        long start = System.nanoTime();
+        throttle.acquire();
+        throttle.acquire();
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), greaterThanOrEqualTo(200L));
+    }
+
+    @Test
+    public void circuitOpensAfterConsecutiveFailures() throws Exception {
+        HostThrottle throttle = new HostThrottle("tfs.example.com", 1000);
+        for (int i = 0; i < 4; i++) {
+            throttle.onFailure();
+        }
+        throttle.onSuccess();
+        for (int i = 0; i < 4; i++) {
+            throttle.onFailure();
+        }
+        //A success in between reset the count
+        throttle.acquire();
+
+        throttle.onFailure();
+        try {
+            throttle.acquire();
+            fail("The circuit should be open");
+        } catch (HostThrottle.CircuitOpenException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("tfs.example.com failed 5 requests in a row"));
+        }
+    }
+}
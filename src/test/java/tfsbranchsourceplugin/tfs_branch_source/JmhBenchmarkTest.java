@@ -0,0 +1,36 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import org.junit.Test;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.io.File;
+
+/**
+ * Runs the JMH benchmarks of this package, eg. {@link TfsJsonReaderBenchmark}, and writes their results
+ * to the benchmark report directory. Runs with -Pbenchmark; -Djmh.include narrows down the benchmarks.
+ */
+public class JmhBenchmarkTest {
+
+    @Test
+    public void runBenchmarks() throws Exception {
+        Options options = new OptionsBuilder()
+                .include(System.getProperty("jmh.include", getClass().getPackage().getName() + "\\..*Benchmark\\."))
+                .warmupIterations(BenchmarkReport.intProperty("jmh.warmupIterations", 5))
+                .warmupTime(TimeValue.seconds(1))
+                .measurementIterations(BenchmarkReport.intProperty("jmh.measurementIterations", 5))
+                .measurementTime(TimeValue.seconds(1))
+                .forks(1)
+                .jvmArgs("-Xmx2g")
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(new File(BenchmarkReport.getDirectory(), "jmh.json").getPath())
+                .shouldFailOnError(true)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,263 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import com.cloudbees.hudson.plugins.folder.Folder;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.impl.UsernamePasswordCredentialsImpl;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.model.TopLevelItem;
+import hudson.util.StreamTaskListener;
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.multibranch.WorkflowMultiBranchProject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class MultiBranchPipelineBuilderTest {
+
+    static final String CREDENTIALS_ID = "tfs";
+
+    /**
+     * The built in templates use the git plugin's branch source, which this plugin doesn't depend on,
+     * so the tests generate jobs from templates that only use classes on the test classpath.
+     */
+    static final String MULTIBRANCH_TEMPLATE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<org.jenkinsci.plugins.workflow.multibranch.WorkflowMultiBranchProject>\n" +
+            "    <description>#description#</description>\n" +
+            "    <triggers>\n" +
+            "        <com.cloudbees.hudson.plugins.folder.computed.PeriodicFolderTrigger>\n" +
+            "            <spec>#triggerSpec#</spec>\n" +
+            "            <interval>#triggerInterval#</interval>\n" +
+            "        </com.cloudbees.hudson.plugins.folder.computed.PeriodicFolderTrigger>\n" +
+            "    </triggers>\n" +
+            "    <disabled>false</disabled>\n" +
+            "    <factory class=\"org.jenkinsci.plugins.workflow.multibranch.WorkflowBranchProjectFactory\">\n" +
+            "        <scriptPath>#fileType#</scriptPath>\n" +
+            "    </factory>\n" +
+            "</org.jenkinsci.plugins.workflow.multibranch.WorkflowMultiBranchProject>";
+    static final String PIPELINE_TEMPLATE = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<flow-definition>\n" +
+            "    <description>#description#</description>\n" +
+            "    <keepDependencies>false</keepDependencies>\n" +
+            "    <properties/>\n" +
+            "    <triggers/>\n" +
+            "    <disabled>false</disabled>\n" +
+            "</flow-definition>";
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public FakeTfs tfs = new FakeTfs().repos(12).branches(4).jenkinsfileDensity(0.5).pipelineDensity(0.25);
+
+    @Before
+    @After
+    public void resetHostLimits() {
+        TfsScanner.resetHostLimits();
+    }
+
+    /**
+     * Sets the global configuration for scanning a fake TFS, and adds its credentials.
+     */
+    static MultiBranchPipelineBuilder.DescriptorImpl configure(JenkinsRule j, int scanThreads) throws Exception {
+        MultiBranchPipelineBuilder.DescriptorImpl descriptor = j.jenkins.getDescriptorByType(MultiBranchPipelineBuilder.DescriptorImpl.class);
+        descriptor.configure(null, new JSONObject()
+                .element("scanThreads", scanThreads)
+                .element("maxRequestsPerHost", 16)
+                .element("requestsPerSecond", 100000)
+                .element("maxRetries", 4)
+                .element("indexingInterval", "1d")
+                .element("multibranchTemplate", MULTIBRANCH_TEMPLATE)
+                .element("pipelineTemplate", PIPELINE_TEMPLATE));
+        SystemCredentialsProvider.getInstance().getCredentials().add(
+                new UsernamePasswordCredentialsImpl(CredentialsScope.GLOBAL, CREDENTIALS_ID, "TFS", FakeTfs.USERNAME, FakeTfs.PASSWORD));
+        SystemCredentialsProvider.getInstance().save();
+        return descriptor;
+    }
+
+    /**
+     * A generator job in the folder of the team project, as set up by hand for a single team project.
+     */
+    static FreeStyleProject createGenerator(JenkinsRule j, FakeTfs tfs) throws IOException {
+        Folder folder = j.jenkins.createProject(Folder.class, "Fabrikam");
+        FreeStyleProject generator = folder.createProject(FreeStyleProject.class, "generator");
+        generator.getBuildersList().add(new MultiBranchPipelineBuilder(tfs.getTeamProjectUrl(), CREDENTIALS_ID, false));
+        return generator;
+    }
+
+    @Test
+    public void generatesJobs() throws Exception {
+        configure(j, 4);
+        FreeStyleProject generator = createGenerator(j, tfs);
+        FreeStyleBuild build = j.buildAndAssertSuccess(generator);
+
+        Folder folder = (Folder) generator.getParent();
+        int expected = tfs.countReposWithJenkinsfile("Fabrikam") + tfs.countPipelines("Fabrikam");
+        assertEquals(expected + 1, folder.getItems().size());
+        for (FakeTfs.Repo repo : tfs.getRepos()) {
+            TopLevelItem item = folder.getItem(repo.name);
+            if (repo.hasJenkinsfile()) {
+                assertThat(repo.name, item, instanceOf(WorkflowMultiBranchProject.class));
+                GeneratedJobMarker marker = GeneratedJobMarker.read((WorkflowMultiBranchProject) item);
+                assertNotNull(repo.name, marker);
+                assertEquals(tfs.getTeamProjectUrl() + "/_git/" + repo.name, marker.source);
+            }
+            for (String pipeline : repo.pipelines) {
+                assertThat(folder.getItem(repo.name + " " + pipeline.split("\\.")[0]), instanceOf(WorkflowJob.class));
+            }
+        }
+        j.assertLogContains(String.format("%d requests issued using the Batched items lookup strategy", tfs.getRequestCount()), build);
+        assertNotNull(build.getAction(ScanMetricsAction.class));
+        assertEquals(tfs.getRepos().size(), build.getAction(ScanMetricsAction.class).getMetrics().getReposScanned());
+    }
+
+    @Test
+    public void rescanOnlyListsRefs() throws Exception {
+        configure(j, 4);
+        FreeStyleProject generator = createGenerator(j, tfs);
+        j.buildAndAssertSuccess(generator);
+        tfs.resetCounts();
+
+        FreeStyleBuild build = j.buildAndAssertSuccess(generator);
+        assertEquals(1 + tfs.getRepos().size(), tfs.getRequestCount());
+        j.assertLogContains("0 probes issued", build);
+    }
+
+    @Test
+    public void reconcileDisablesOrphans() throws Exception {
+        configure(j, 4);
+        FreeStyleProject generator = createGenerator(j, tfs);
+        MultiBranchPipelineBuilder builder = generator.getBuildersList().get(MultiBranchPipelineBuilder.class);
+        builder.setReconcile(true);
+        builder.setOrphanPolicy(OrphanPolicy.DISABLE.name());
+        j.buildAndAssertSuccess(generator);
+
+        //The Jenkinsfile is removed from its only branch
+        FakeTfs.Repo repo = null;
+        for (FakeTfs.Repo candidate : tfs.getRepos()) {
+            if (candidate.hasJenkinsfile()) {
+                repo = candidate;
+                break;
+            }
+        }
+        assertNotNull("The seed generated no repo with a Jenkinsfile", repo);
+        for (FakeTfs.Branch branch : repo.branches) {
+            if (branch.hasJenkinsfile) {
+                tfs.push(repo.name, branch.name, false);
+            }
+        }
+        FreeStyleBuild build = j.buildAndAssertSuccess(generator);
+        j.assertLogContains("Disabled orphaned job: " + repo.name, build);
+        WorkflowMultiBranchProject orphan = (WorkflowMultiBranchProject) ((Folder) generator.getParent()).getItem(repo.name);
+        assertTrue(orphan.isDisabled());
+    }
+
+    @Test
+    public void reconcileLeavesCopiesAlone() throws Exception {
+        configure(j, 4);
+        FreeStyleProject generator = createGenerator(j, tfs);
+        MultiBranchPipelineBuilder builder = generator.getBuildersList().get(MultiBranchPipelineBuilder.class);
+        builder.setReconcile(true);
+        builder.setOrphanPolicy(OrphanPolicy.DELETE.name());
+        j.buildAndAssertSuccess(generator);
+
+        Folder folder = (Folder) generator.getParent();
+        FakeTfs.Repo repo = null;
+        for (FakeTfs.Repo candidate : tfs.getRepos()) {
+            if (candidate.hasJenkinsfile()) {
+                repo = candidate;
+                break;
+            }
+        }
+        assertNotNull("The seed generated no repo with a Jenkinsfile", repo);
+        WorkflowMultiBranchProject generated = (WorkflowMultiBranchProject) folder.getItem(repo.name);
+        folder.copy(generated, repo.name + " copy");
+        generated.renameTo(repo.name + " (old)");
+
+        FreeStyleBuild build = j.buildAndAssertSuccess(generator);
+        j.assertLogNotContains("Deleted orphaned job", build);
+        assertNotNull(folder.getItem(repo.name + " copy"));
+        assertNotNull(folder.getItem(repo.name + " (old)"));
+        //The renamed job no longer counts as the generated one, so the job is generated again
+        assertNotNull(GeneratedJobMarker.read((WorkflowMultiBranchProject) folder.getItem(repo.name)));
+    }
+
+    @Test
+    public void repoEventsDontWaitForScans() throws Exception {
+        configure(j, 4);
+        FreeStyleProject generator = createGenerator(j, tfs);
+        MultiBranchPipelineBuilder builder = generator.getBuildersList().get(MultiBranchPipelineBuilder.class);
+        j.buildAndAssertSuccess(generator);
+
+        FakeTfs.Repo repo = null;
+        for (FakeTfs.Repo candidate : tfs.getRepos()) {
+            if (candidate.hasJenkinsfile()) {
+                repo = candidate;
+                break;
+            }
+        }
+        assertNotNull("The seed generated no repo with a Jenkinsfile", repo);
+        RepoEvent event = push(repo, tfs.push(repo.name, "master", true));
+
+        Collection<String> locked = Collections.singleton(tfs.getTeamProjectUrl());
+        assertTrue(TeamProjectLocks.tryLock(locked));
+        try {
+            assertEquals(MultiBranchPipelineBuilder.EventOutcome.BUSY, builder.onRepoEvent(generator, event, TaskListener.NULL));
+        } finally {
+            TeamProjectLocks.unlock(locked);
+        }
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        assertEquals(MultiBranchPipelineBuilder.EventOutcome.APPLIED, builder.onRepoEvent(generator, event, new StreamTaskListener(log)));
+        assertThat(log.toString(), containsString("Scheduled branch indexing of " + repo.name + " in "));
+    }
+
+    private RepoEvent push(FakeTfs.Repo repo, TfsRef ref) {
+        return RepoEvent.parse(new org.json.JSONObject()
+                .put("eventType", "git.push")
+                .put("resource", new org.json.JSONObject()
+                        .put("repository", new org.json.JSONObject()
+                                .put("id", repo.id)
+                                .put("name", repo.name)
+                                .put("project", new org.json.JSONObject().put("name", "Fabrikam"))
+                                .put("remoteUrl", tfs.getTeamProjectUrl() + "/_git/" + repo.name))
+                        .put("refUpdates", new org.json.JSONArray()
+                                .put(new org.json.JSONObject().put("name", ref.name).put("newObjectId", ref.objectId)))));
+    }
+
+    @Test
+    public void needsATeamProjectFolder() throws Exception {
+        configure(j, 4);
+        FreeStyleProject generator = j.createFreeStyleProject("generator");
+        generator.getBuildersList().add(new MultiBranchPipelineBuilder(tfs.getTeamProjectUrl(), CREDENTIALS_ID, false));
+        FreeStyleBuild build = j.assertBuildStatus(Result.FAILURE, generator.scheduleBuild2(0));
+        j.assertLogContains("Team project folder does not exist!", build);
+    }
+
+    @Test
+    public void failsOnUnknownCredentials() throws Exception {
+        configure(j, 4);
+        FreeStyleProject generator = createGenerator(j, tfs);
+        generator.getBuildersList().replace(new MultiBranchPipelineBuilder(tfs.getTeamProjectUrl(), "missing", false));
+        FreeStyleBuild build = j.assertBuildStatus(Result.FAILURE, generator.scheduleBuild2(0));
+        j.assertLogContains("No TFS credentials found with id missing", build);
+        assertEquals(0, tfs.getRequestCount());
+    }
+}
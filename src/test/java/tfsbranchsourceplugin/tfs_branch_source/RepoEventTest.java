@@ -0,0 +1,148 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RepoEventTest {
+
+    private static final String ZERO_ID = "0000000000000000000000000000000000000000";
+
+    private static JSONObject repository() {
+        return new JSONObject()
+                .put("id", "5febef5a-833d-4e14-b9c0-14cb638f91e6")
+                .put("name", "app")
+                .put("url", "https://tfs.example.com/tfs/DefaultCollection/_apis/git/repositories/5febef5a-833d-4e14-b9c0-14cb638f91e6")
+                .put("project", new JSONObject().put("id", "eb6e4656").put("name", "Fabrikam"))
+                .put("remoteUrl", "https://tfs.example.com/tfs/DefaultCollection/Fabrikam/_git/app");
+    }
+
+    private static JSONObject refUpdate(String name, String newObjectId) {
+        return new JSONObject().put("name", name).put("oldObjectId", "0a1b2c").put("newObjectId", newObjectId);
+    }
+
+    private static JSONObject push(JSONObject... refUpdates) {
+        JSONArray updates = new JSONArray();
+        for (JSONObject refUpdate : refUpdates) {
+            updates.put(refUpdate);
+        }
+        return new JSONObject()
+                .put("eventType", "git.push")
+                .put("resource", new JSONObject().put("repository", repository()).put("refUpdates", updates));
+    }
+
+    @Test
+    public void parsesPush() {
+        RepoEvent event = RepoEvent.parse(push(
+                refUpdate("refs/heads/master", "3d4e5f"),
+                refUpdate("refs/tags/v1.0", "3d4e5f"),
+                refUpdate("refs/heads/users/dev1/topic", ZERO_ID)));
+        assertEquals(RepoEvent.Type.PUSH, event.type);
+        assertEquals("5febef5a-833d-4e14-b9c0-14cb638f91e6", event.repoId);
+        assertEquals("app", event.repoName);
+        assertEquals("Fabrikam", event.projectName);
+        assertEquals("tfs.example.com", event.host);
+        //Tags are not branches, and a zero head is a deleted branch
+        assertEquals(2, event.branches.size());
+        assertEquals("refs/heads/master", event.branches.get(0).name);
+        assertEquals("3d4e5f", event.branches.get(0).objectId);
+        assertEquals("refs/heads/users/dev1/topic", event.branches.get(1).name);
+        assertNull(event.branches.get(1).objectId);
+        assertEquals("git.push of Fabrikam/app [refs/heads/master, refs/heads/users/dev1/topic]", event.toString());
+    }
+
+    @Test
+    public void parsesCreatedRepo() {
+        RepoEvent event = RepoEvent.parse(new JSONObject()
+                .put("eventType", "git.repo.created")
+                .put("resource", new JSONObject().put("repository", repository())));
+        assertEquals(RepoEvent.Type.CREATED, event.type);
+        assertEquals("app", event.repoName);
+        assertTrue(event.branches.isEmpty());
+    }
+
+    @Test
+    public void parsesDeletedRepo() {
+        RepoEvent event = RepoEvent.parse(new JSONObject()
+                .put("eventType", "git.repo.deleted")
+                .put("resource", new JSONObject()
+                        .put("repositoryId", "5febef5a-833d-4e14-b9c0-14cb638f91e6")
+                        .put("repositoryName", "app")
+                        .put("projectName", "Fabrikam"))
+                .put("resourceContainers", new JSONObject()
+                        .put("collection", new JSONObject().put("id", "c12d0eb8").put("baseUrl", "https://tfs.example.com/tfs/DefaultCollection/"))));
+        assertEquals(RepoEvent.Type.DELETED, event.type);
+        assertEquals("5febef5a-833d-4e14-b9c0-14cb638f91e6", event.repoId);
+        assertEquals("app", event.repoName);
+        assertEquals("Fabrikam", event.projectName);
+        assertEquals("tfs.example.com", event.host);
+    }
+
+    @Test
+    public void hostIsOptional() {
+        JSONObject payload = push(refUpdate("refs/heads/master", "3d4e5f"));
+        payload.getJSONObject("resource").getJSONObject("repository").remove("url");
+        payload.getJSONObject("resource").getJSONObject("repository").remove("remoteUrl");
+        assertNull(RepoEvent.parse(payload).host);
+    }
+
+    @Test
+    public void ignoresOtherEvents() {
+        assertNull(RepoEvent.parse(new JSONObject().put("eventType", "build.complete").put("resource", new JSONObject())));
+        assertNull(RepoEvent.parse(new JSONObject()));
+    }
+
+    @Test
+    public void rejectsEventsWithoutRepo() {
+        assertRejected(new JSONObject().put("eventType", "git.push"));
+        assertRejected(new JSONObject().put("eventType", "git.push").put("resource", new JSONObject().put("refUpdates", new JSONArray())));
+    }
+
+    private static void assertRejected(JSONObject payload) {
+        try {
+            RepoEvent.parse(payload);
+            fail("Should not parse " + payload);
+        } catch (IllegalArgumentException e) {
+            //Expected
+        }
+    }
+
+    @Test
+    public void pushesInABurstAreMerged() {
+        RepoEvent first = RepoEvent.parse(push(refUpdate("refs/heads/master", "111111"), refUpdate("refs/heads/feature/a", "222222")));
+        RepoEvent second = RepoEvent.parse(push(refUpdate("refs/heads/feature/a", ZERO_ID), refUpdate("refs/heads/feature/b", "333333")));
+        RepoEvent merged = first.followedBy(second);
+        assertEquals(RepoEvent.Type.PUSH, merged.type);
+        List<TfsRef> branches = merged.branches;
+        assertEquals(3, branches.size());
+        assertEquals("refs/heads/master", branches.get(0).name);
+        assertEquals("111111", branches.get(0).objectId);
+        //The later push wins
+        assertEquals("refs/heads/feature/a", branches.get(1).name);
+        assertNull(branches.get(1).objectId);
+        assertEquals("refs/heads/feature/b", branches.get(2).name);
+    }
+
+    @Test
+    public void pushAfterCreateKeepsTheFullScan() {
+        RepoEvent created = new RepoEvent(RepoEvent.Type.CREATED, "5febef5a", "app", "Fabrikam", null, Collections.<TfsRef>emptyList());
+        RepoEvent merged = created.followedBy(RepoEvent.parse(push(refUpdate("refs/heads/master", "111111"))));
+        assertEquals(RepoEvent.Type.CREATED, merged.type);
+        assertTrue(merged.branches.isEmpty());
+    }
+
+    @Test
+    public void deleteReplacesEarlierEvents() {
+        RepoEvent pushed = RepoEvent.parse(push(refUpdate("refs/heads/master", "111111")));
+        RepoEvent deleted = new RepoEvent(RepoEvent.Type.DELETED, "5febef5a", "app", "Fabrikam", null, Collections.<TfsRef>emptyList());
+        assertEquals(RepoEvent.Type.DELETED, pushed.followedBy(deleted).type);
+    }
+}
@@ -0,0 +1,104 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.lang.management.ManagementFactory;
+
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Scans a large fake TFS end to end through a generator job, and reports the requests issued, the wall
+ * time and the peak heap of a full scan and of the incremental scan after it. Runs with -Pbenchmark.
+ * The scale is set with system properties, eg. -Dtfs.benchmark.repos=1000 -Dtfs.benchmark.branches=50
+ * for 50k branches, and CI can fail the build on regressions with tfs.benchmark.maxFullScanMillis,
+ * tfs.benchmark.maxIncrementalScanMillis and tfs.benchmark.maxPeakHeapMegabytes.
+ */
+public class ScanBenchmarkTest {
+
+    private static final int REPOS = BenchmarkReport.intProperty("tfs.benchmark.repos", 1000);
+    private static final int BRANCHES = BenchmarkReport.intProperty("tfs.benchmark.branches", 50);
+    private static final long LATENCY_MILLIS = BenchmarkReport.longProperty("tfs.benchmark.latencyMillis", 0);
+    private static final double ERROR_RATE = BenchmarkReport.doubleProperty("tfs.benchmark.errorRate", 0);
+    private static final double JENKINSFILE_DENSITY = BenchmarkReport.doubleProperty("tfs.benchmark.jenkinsfileDensity", 0.3);
+    private static final int SCAN_THREADS = BenchmarkReport.intProperty("tfs.benchmark.scanThreads", 8);
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public FakeTfs tfs = new FakeTfs().repos(REPOS).branches(BRANCHES).latency(LATENCY_MILLIS).errorRate(ERROR_RATE)
+            .jenkinsfileDensity(JENKINSFILE_DENSITY).pipelineDensity(0.05);
+
+    @Before
+    @After
+    public void resetHostLimits() {
+        TfsScanner.resetHostLimits();
+    }
+
+    @Test
+    public void scan() throws Exception {
+        j.timeout = 0;
+        MultiBranchPipelineBuilderTest.configure(j, SCAN_THREADS);
+        FreeStyleProject generator = MultiBranchPipelineBuilderTest.createGenerator(j, tfs);
+        BenchmarkReport report = new BenchmarkReport("scan")
+                .put("repos", REPOS)
+                .put("branches", REPOS * BRANCHES)
+                .put("latencyMillis", LATENCY_MILLIS)
+                .put("errorRate", ERROR_RATE)
+                .put("jenkinsfileDensity", JENKINSFILE_DENSITY)
+                .put("scanThreads", SCAN_THREADS)
+                .put("maxHeapBytes", ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax());
+
+        run(generator, report, "fullScan");
+        if (ERROR_RATE == 0) {
+            //Refs of every repo, then at most one itemsbatch and one pipeline lookup per repo
+            assertThat(tfs.getRequestCount(), lessThanOrEqualTo(1 + 3 * REPOS));
+        }
+        checkLimit(report, "fullScan", "wallMillis", "tfs.benchmark.maxFullScanMillis");
+
+        run(generator, report, "incrementalScan");
+        if (ERROR_RATE == 0) {
+            //Nothing moved, so only the repos and their refs are listed
+            assertThat(tfs.getRequestCount(), lessThanOrEqualTo(1 + REPOS));
+        }
+        checkLimit(report, "incrementalScan", "wallMillis", "tfs.benchmark.maxIncrementalScanMillis");
+        report.write();
+
+        long maxPeakHeap = BenchmarkReport.longProperty("tfs.benchmark.maxPeakHeapMegabytes", 0);
+        if (maxPeakHeap > 0) {
+            assertThat(Math.max(report.getLong("fullScan", "peakHeapBytes"), report.getLong("incrementalScan", "peakHeapBytes")),
+                    lessThanOrEqualTo(maxPeakHeap * 1024 * 1024));
+        }
+    }
+
+    private void run(FreeStyleProject generator, BenchmarkReport report, String scenario) throws Exception {
+        tfs.resetCounts();
+        FreeStyleBuild build;
+        long start = System.nanoTime();
+        try (BenchmarkReport.HeapSampler heap = new BenchmarkReport.HeapSampler()) {
+            build = j.buildAndAssertSuccess(generator);
+            report.put(scenario, "peakHeapBytes", heap.getPeakBytes());
+        }
+        report.put(scenario, "wallMillis", (System.nanoTime() - start) / 1000000)
+                .put(scenario, "requests", tfs.getRequestCount())
+                .put(scenario, "refsRequests", tfs.getRequestCount(FakeTfs.REFS))
+                .put(scenario, "itemsbatchRequests", tfs.getRequestCount(FakeTfs.ITEMS_BATCH))
+                .put(scenario, "itemsRequests", tfs.getRequestCount(FakeTfs.ITEMS))
+                .put(scenario, "connections", tfs.getConnectionCount())
+                .put(scenario, "reposScanned", build.getAction(ScanMetricsAction.class).getMetrics().getReposScanned());
+    }
+
+    private static void checkLimit(BenchmarkReport report, String scenario, String metric, String property) {
+        long limit = BenchmarkReport.longProperty(property, 0);
+        if (limit > 0) {
+            assertThat(scenario + " " + metric, report.getLong(scenario, metric), lessThanOrEqualTo(limit));
+        }
+    }
+}
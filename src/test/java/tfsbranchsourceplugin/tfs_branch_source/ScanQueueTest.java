@@ -0,0 +1,73 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import com.squareup.okhttp.OkHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class ScanQueueTest {
+
+    @Rule
+    public FakeTfs tfs = new FakeTfs().projects("Fabrikam", "Contoso").repos(15).branches(3);
+
+    private final ScanMetrics metrics = new ScanMetrics();
+
+    @Before
+    @After
+    public void resetHostLimits() {
+        TfsScanner.resetHostLimits();
+    }
+
+    private TfsScanner newScanner(String project) throws Exception {
+        return new TfsScanner(FakeTfs.newRestClient(new OkHttpClient(), tfs.getTeamProjectUrl(project), metrics),
+                tfs.getTeamProjectUrl(project), "Jenkinsfile", new ScanState(), JenkinsfileLookupStrategy.ITEMS_BATCH, BranchFilter.parse(null, null, 0));
+    }
+
+    @Test
+    public void scansTeamProjectsTogether() throws Exception {
+        TfsScanner fabrikam = newScanner("Fabrikam");
+        TfsScanner contoso = newScanner("Contoso");
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        ScanQueue queue = new ScanQueue(4, metrics);
+        Map<TfsScanner, List<RepoScanResult>> results = queue.scan(Arrays.asList(fabrikam, contoso), TfsScanner.newPrintStream(log));
+
+        assertEquals(Arrays.asList(fabrikam, contoso), new ArrayList<>(results.keySet()));
+        assertEquals(15, results.get(fabrikam).size());
+        assertEquals(15, results.get(contoso).size());
+        assertEquals(30, metrics.getReposTotal());
+        assertEquals(30, metrics.getReposScanned());
+        assertTrue(queue.getFailures().isEmpty());
+
+        //Logs are replayed per team project, in repo order
+        String output = log.toString("UTF-8");
+        assertTrue(output.indexOf("--Team project: " + tfs.getTeamProjectUrl("Fabrikam")) < output.indexOf("--Team project: " + tfs.getTeamProjectUrl("Contoso")));
+        assertTrue(output.indexOf("Repo: repo-0000") < output.indexOf("Repo: repo-0014"));
+        assertThat(output, containsString("--Scanned 30 of 30 repos--"));
+    }
+
+    @Test
+    public void failedTeamProjectsAreLeftOut() throws Exception {
+        TfsScanner fabrikam = newScanner("Fabrikam");
+        TfsScanner missing = newScanner("Missing");
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        ScanQueue queue = new ScanQueue(4, metrics);
+        Map<TfsScanner, List<RepoScanResult>> results = queue.scan(Arrays.asList(missing, fabrikam), TfsScanner.newPrintStream(log));
+
+        assertEquals(Arrays.asList(fabrikam), new ArrayList<>(results.keySet()));
+        assertEquals(15, results.get(fabrikam).size());
+        assertEquals(Arrays.asList(missing), new ArrayList<>(queue.getFailures().keySet()));
+        assertThat(log.toString("UTF-8"), containsString("Could not list the repos of " + tfs.getTeamProjectUrl("Missing") + ": HTTP 404"));
+    }
+}
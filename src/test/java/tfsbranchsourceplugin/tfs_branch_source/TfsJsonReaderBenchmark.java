@@ -0,0 +1,43 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads refs listings the size of a monorepo's. Run by {@link JmhBenchmarkTest}, whose GC profiler
+ * reports the bytes allocated per listing as gc.alloc.rate.norm.
+ */
+@State(Scope.Benchmark)
+public class TfsJsonReaderBenchmark {
+
+    @Param({"1000", "50000"})
+    public int refs;
+
+    private byte[] json;
+
+    @Setup
+    public void createListing() {
+        json = FakeTfs.refsJson(refs).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Object readRefs() throws IOException {
+        return TfsJsonReader.readRefs(new ByteArrayInputStream(json));
+    }
+
+    /** How listings were read before TfsJsonReader: the whole response as an org.json tree, kept by the scan. */
+    @Benchmark
+    public Object readRefsWithOrgJson() {
+        return new JSONObject(new JSONTokener(new InputStreamReader(new ByteArrayInputStream(json), StandardCharsets.UTF_8))).getJSONArray("value");
+    }
+}
@@ -0,0 +1,94 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TfsJsonReaderTest {
+
+    private static InputStream json(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void readsRepos() throws Exception {
+        List<TfsRepo> repos = TfsJsonReader.readRepos(json("{\"value\":["
+                + "{\"id\":\"5febef5a\",\"name\":\"app\",\"url\":\"http://tfs/_apis/git/repositories/5febef5a\","
+                + "\"project\":{\"id\":\"eb6e4656\",\"name\":\"Fabrikam\",\"url\":\"http://tfs/_apis/projects/eb6e4656\"},"
+                + "\"defaultBranch\":\"refs/heads/master\",\"size\":1234},"
+                + "{\"name\":\"lib\",\"tags\":[\"a\",{\"id\":\"nested\"}],\"id\":\"64b2f6d7\"}"
+                + "],\"count\":2}"));
+        assertEquals(2, repos.size());
+        assertEquals("5febef5a", repos.get(0).id);
+        assertEquals("app", repos.get(0).name);
+        //Nested objects with the same field names don't leak into the repo
+        assertEquals("64b2f6d7", repos.get(1).id);
+        assertEquals("lib", repos.get(1).name);
+    }
+
+    @Test
+    public void readsRefs() throws Exception {
+        List<TfsRef> refs = TfsJsonReader.readRefs(json(FakeTfs.refsJson("http://tfs/_apis/git/repositories/5febef5a", Arrays.asList(
+                new TfsRef("refs/heads/master", "0a1b2c"),
+                new TfsRef("refs/heads/users/dev1/topic", "3d4e5f")))));
+        assertEquals(2, refs.size());
+        assertEquals("refs/heads/master", refs.get(0).name);
+        assertEquals("0a1b2c", refs.get(0).objectId);
+        assertEquals("users/dev1/topic", refs.get(1).getBranchName());
+        assertEquals("3d4e5f", refs.get(1).objectId);
+    }
+
+    @Test
+    public void valueMayComeAfterOtherFields() throws Exception {
+        List<TfsRef> refs = TfsJsonReader.readRefs(json("{\"count\":1,\"links\":{\"value\":[]},\"value\":[{\"objectId\":\"0a1b2c\",\"name\":\"refs/heads/master\"}]}"));
+        assertEquals(1, refs.size());
+        assertEquals("refs/heads/master", refs.get(0).name);
+    }
+
+    @Test
+    public void missingFieldsAreNull() throws Exception {
+        List<TfsRef> refs = TfsJsonReader.readRefs(json("{\"value\":[{\"name\":\"refs/heads/master\",\"objectId\":null}]}"));
+        assertNull(refs.get(0).objectId);
+        refs = TfsJsonReader.readRefs(json("{\"value\":[{\"name\":\"refs/heads/master\"}]}"));
+        assertNull(refs.get(0).objectId);
+    }
+
+    @Test
+    public void emptyListing() throws Exception {
+        assertTrue(TfsJsonReader.readRefs(json("{\"value\":[],\"count\":0}")).isEmpty());
+    }
+
+    @Test
+    public void readsLargeListings() throws Exception {
+        List<TfsRef> refs = TfsJsonReader.readRefs(json(FakeTfs.refsJson(50000)));
+        assertEquals(50000, refs.size());
+        assertEquals("refs/heads/master", refs.get(0).name);
+        assertEquals(40, refs.get(49999).objectId.length());
+    }
+
+    @Test
+    public void rejectsResponsesWithoutValue() throws Exception {
+        assertRejected("{\"$id\":\"1\",\"message\":\"TF401019: The Git repository does not exist\"}");
+        assertRejected("[{\"name\":\"refs/heads/master\"}]");
+        assertRejected("{\"value\":{\"name\":\"refs/heads/master\"}}");
+    }
+
+    private static void assertRejected(String json) {
+        try {
+            TfsJsonReader.readRefs(json(json));
+            fail("Should not read " + json);
+        } catch (IOException e) {
+            //Expected
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import com.squareup.okhttp.Credentials;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TfsRestClientTest {
+
+    @Rule
+    public MockWebServer server = new MockWebServer();
+
+    private final ScanMetrics metrics = new ScanMetrics();
+    private TfsRestClient rest;
+
+    @Before
+    public void createClient() throws IOException {
+        TfsRestClient.resetHostLimits();
+        rest = new TfsRestClient(new OkHttpClient(), server.url("/tfs/DefaultCollection/Fabrikam").toString(),
+                Credentials.basic("builder", "secret"), 4, 1000, 2, metrics);
+    }
+
+    @After
+    public void resetHostLimits() {
+        TfsRestClient.resetHostLimits();
+    }
+
+    private String url(String path) {
+        return server.url(path).toString();
+    }
+
+    @Test
+    public void sendsTheAuthorizationOnEveryRequest() throws Exception {
+        server.enqueue(new MockResponse().setBody("{\"value\":[]}"));
+        server.enqueue(new MockResponse().setBody("{\"value\":[]}"));
+        rest.getJson(ScanPhase.LIST_REPOS, url("/a"));
+        rest.postJson(ScanPhase.PROBE_JENKINSFILE, url("/b"), new JSONObject());
+        assertEquals(Credentials.basic("builder", "secret"), server.takeRequest().getHeader("Authorization"));
+        assertEquals(Credentials.basic("builder", "secret"), server.takeRequest().getHeader("Authorization"));
+    }
+
+    @Test
+    public void retriesTransientFailures() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setResponseCode(502));
+        server.enqueue(new MockResponse().setBody("{\"value\":[1]}"));
+        JSONObject json = rest.getJson(ScanPhase.LIST_REPOS, url("/repos"));
+        assertEquals(1, json.getJSONArray("value").length());
+        assertEquals(3, rest.getRequestsIssued());
+        ScanMetrics.HostStats host = metrics.getHosts().get(0);
+        assertEquals(2, host.getRetries());
+        assertEquals("200: 1, 502: 1, 503: 1", host.getStatuses());
+    }
+
+    @Test
+    public void givesUpAfterTheRetries() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            server.enqueue(new MockResponse().setResponseCode(503));
+        }
+        try {
+            rest.getJson(ScanPhase.LIST_REPOS, url("/repos"));
+            fail("Should give up after 2 retries");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("HTTP 503 from"));
+        }
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void failsOnBadCredentials() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(401));
+        try {
+            rest.getJson(ScanPhase.LIST_REPOS, url("/repos"));
+            fail("401 should fail the request");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith("check the credentials"));
+        }
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void errorPagesReadAsEmpty() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(404).setBody("<html>Not found</html>"));
+        TfsRestClient.Result<JSONObject> result = rest.get(ScanPhase.PROBE_JENKINSFILE, url("/items"), null, TfsRestClient.JSON_OBJECT);
+        assertEquals(404, result.code);
+        assertEquals(0, result.value.length());
+    }
+
+    @Test
+    public void conditionalRequests() throws Exception {
+        server.enqueue(new MockResponse().setBody("{\"value\":[]}").setHeader("ETag", "\"v1\""));
+        server.enqueue(new MockResponse().setResponseCode(304));
+        TfsRestClient.Result<JSONObject> first = rest.get(ScanPhase.LIST_REFS, url("/refs"), null, TfsRestClient.JSON_OBJECT);
+        assertEquals("\"v1\"", first.etag);
+        TfsRestClient.Result<JSONObject> second = rest.get(ScanPhase.LIST_REFS, url("/refs"), first.etag, TfsRestClient.JSON_OBJECT);
+        assertTrue(second.notModified);
+        assertEquals("\"v1\"", second.etag);
+        assertNull(second.value);
+        server.takeRequest();
+        assertEquals("\"v1\"", server.takeRequest().getHeader("If-None-Match"));
+    }
+}
@@ -0,0 +1,250 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class TfsScannerTest {
+
+    private static final BranchFilter ALL_BRANCHES = BranchFilter.parse(null, null, 0);
+
+    @Rule
+    public FakeTfs tfs = new FakeTfs().repos(20).branches(5).jenkinsfileDensity(0.5).pipelineDensity(0.2);
+
+    private final ScanMetrics metrics = new ScanMetrics();
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+    @Before
+    @After
+    public void resetHostLimits() {
+        TfsScanner.resetHostLimits();
+    }
+
+    private TfsScanner newScanner(FakeTfs tfs, ScanState previousState, JenkinsfileLookupStrategy strategy, BranchFilter filter) throws IOException {
+        return new TfsScanner(tfs.newRestClient(metrics), tfs.getTeamProjectUrl(), "Jenkinsfile", previousState, strategy, filter);
+    }
+
+    private List<RepoScanResult> scan(TfsScanner scanner) throws Exception {
+        ScanQueue queue = new ScanQueue(8, metrics);
+        List<RepoScanResult> results = queue.scan(Collections.singletonList(scanner), TfsScanner.newPrintStream(log)).get(scanner);
+        assertTrue(queue.getFailures().toString(), queue.getFailures().isEmpty());
+        return results;
+    }
+
+    private String log() throws IOException {
+        return log.toString("UTF-8");
+    }
+
+    /**
+     * Checks the results against what the server holds, for the branches the filter lets through.
+     */
+    private static void assertFound(FakeTfs tfs, List<RepoScanResult> results, BranchFilter filter) {
+        assertEquals(tfs.getRepos().size(), results.size());
+        for (int i = 0; i < results.size(); i++) {
+            FakeTfs.Repo repo = tfs.getRepos().get(i);
+            RepoScanResult result = results.get(i);
+            assertEquals(repo.name, result.repoName);
+            boolean expected = false;
+            for (FakeTfs.Branch branch : repo.branches) {
+                TfsRef ref = new TfsRef("refs/heads/" + branch.name, branch.objectId);
+                expected |= branch.hasJenkinsfile && filter.isIncluded(ref) && !filter.isExcluded(ref);
+            }
+            assertEquals(repo.name, expected, result.hasJenkinsfile);
+            assertEquals(repo.name, repo.pipelines, result.jenkinsfiles);
+        }
+    }
+
+    private FakeTfs.Repo findRepo(boolean hasJenkinsfile) {
+        for (FakeTfs.Repo repo : tfs.getRepos()) {
+            if (repo.hasJenkinsfile() == hasJenkinsfile && (!hasJenkinsfile || !repo.branches.get(0).hasJenkinsfile)) {
+                return repo;
+            }
+        }
+        throw new AssertionError("The seed generated no such repo");
+    }
+
+    @Test
+    public void findsJenkinsfilesInBatches() throws Exception {
+        List<RepoScanResult> results = scan(newScanner(tfs, new ScanState(), JenkinsfileLookupStrategy.ITEMS_BATCH, ALL_BRANCHES));
+        assertFound(tfs, results, ALL_BRANCHES);
+        int repos = tfs.getRepos().size();
+        assertEquals(1, tfs.getRequestCount(FakeTfs.REPOSITORIES));
+        assertEquals(repos, tfs.getRequestCount(FakeTfs.REFS));
+        //Five branches fit in one batch, and the master listing is one more request
+        assertEquals(repos, tfs.getRequestCount(FakeTfs.ITEMS_BATCH));
+        assertEquals(repos, tfs.getRequestCount(FakeTfs.ITEMS));
+        assertEquals(1 + 3 * repos, tfs.getRequestCount());
+    }
+
+    @Test
+    public void findsJenkinsfilesPerBranch() throws Exception {
+        List<RepoScanResult> results = scan(newScanner(tfs, new ScanState(), JenkinsfileLookupStrategy.PER_BRANCH, ALL_BRANCHES));
+        assertFound(tfs, results, ALL_BRANCHES);
+        assertEquals(0, tfs.getRequestCount(FakeTfs.ITEMS_BATCH));
+        assertThat(tfs.getRequestCount(FakeTfs.ITEMS), greaterThan(2 * tfs.getRepos().size()));
+    }
+
+    @Test
+    public void rescanReusesThePreviousScan() throws Exception {
+        TfsScanner first = newScanner(tfs, new ScanState(), JenkinsfileLookupStrategy.ITEMS_BATCH, ALL_BRANCHES);
+        scan(first);
+        tfs.resetCounts();
+
+        List<RepoScanResult> results = scan(newScanner(tfs, first.getState(), JenkinsfileLookupStrategy.ITEMS_BATCH, ALL_BRANCHES));
+        assertFound(tfs, results, ALL_BRANCHES);
+        //Every refs listing is answered with 304, and nothing else is asked
+        int repos = tfs.getRepos().size();
+        assertEquals(1 + repos, tfs.getRequestCount());
+        //Five branches and the master listing of each repo
+        assertThat(log(), containsString(String.format("0 probes issued, %d probes saved, %d refs listings not modified", 6 * repos, repos)));
+    }
+
+    @Test
+    public void probesMovedBranchesOnly() throws Exception {
+        TfsScanner first = newScanner(tfs, new ScanState(), JenkinsfileLookupStrategy.ITEMS_BATCH, ALL_BRANCHES);
+        scan(first);
+        FakeTfs.Repo repo = findRepo(false);
+        tfs.push(repo.name, "feature/f-1", true);
+        tfs.resetCounts();
+
+        List<RepoScanResult> results = scan(newScanner(tfs, first.getState(), JenkinsfileLookupStrategy.ITEMS_BATCH, ALL_BRANCHES));
+        assertFound(tfs, results, ALL_BRANCHES);
+        assertEquals(1, tfs.getRequestCount(FakeTfs.ITEMS_BATCH));
+        assertEquals(0, tfs.getRequestCount(FakeTfs.ITEMS));
+    }
+
+    @Test
+    public void pushEventsSkipTheRefsListing() throws Exception {
+        TfsScanner first = newScanner(tfs, new ScanState(), JenkinsfileLookupStrategy.ITEMS_BATCH, ALL_BRANCHES);
+        scan(first);
+        ExecutorService probePool = Executors.newFixedThreadPool(2);
+        try {
+            //The branch with the only Jenkinsfile is deleted, and what is left is known from the last scan
+            FakeTfs.Repo repo = findRepo(true);
+            String branch = null;
+            for (FakeTfs.Branch b : repo.branches) {
+                if (b.hasJenkinsfile) {
+                    branch = b.name;
+                }
+            }
+            TfsRef deleted = tfs.deleteBranch(repo.name, branch);
+            tfs.resetCounts();
+            TfsScanner scanner = newScanner(tfs, first.getState(), JenkinsfileLookupStrategy.ITEMS_BATCH, ALL_BRANCHES);
+            RepoScanResult result = scanner.scanRepo(probePool, new TfsRepo(repo.id, repo.name), Collections.singletonList(deleted));
+            assertFalse(result.hasJenkinsfile);
+            assertEquals(0, tfs.getRequestCount());
+
+            //A pushed branch is probed on its own
+            TfsRef pushed = tfs.push(repo.name, "feature/new", true);
+            result = newScanner(tfs, scanner.getState(), JenkinsfileLookupStrategy.ITEMS_BATCH, ALL_BRANCHES)
+                    .scanRepo(probePool, new TfsRepo(repo.id, repo.name), Collections.singletonList(pushed));
+            assertTrue(result.hasJenkinsfile);
+            assertEquals(0, tfs.getRequestCount(FakeTfs.REFS));
+            assertEquals(1, tfs.getRequestCount(FakeTfs.ITEMS_BATCH));
+        } finally {
+            probePool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void fallsBackWithoutItemsBatch() throws Exception {
+        FakeTfs oldTfs = new FakeTfs().repos(10).branches(5).itemsBatch(false);
+        oldTfs.start();
+        try {
+            List<RepoScanResult> results = scan(newScanner(oldTfs, new ScanState(), JenkinsfileLookupStrategy.ITEMS_BATCH, ALL_BRANCHES));
+            assertFound(oldTfs, results, ALL_BRANCHES);
+            assertThat(log(), containsString("itemsbatch is not supported by " + oldTfs.getHost()));
+
+            //The host is remembered, so the next scan goes straight to one request per branch
+            int batches = oldTfs.getRequestCount(FakeTfs.ITEMS_BATCH);
+            scan(newScanner(oldTfs, new ScanState(), JenkinsfileLookupStrategy.ITEMS_BATCH, ALL_BRANCHES));
+            assertEquals(batches, oldTfs.getRequestCount(FakeTfs.ITEMS_BATCH));
+        } finally {
+            oldTfs.stop();
+        }
+    }
+
+    @Test
+    public void rejectedBatchesFallBackForThatBatchOnly() throws Exception {
+        FakeTfs rejecting = new FakeTfs().repos(10).branches(5).rejectBatches(true);
+        rejecting.start();
+        try {
+            TfsScanner scanner = newScanner(rejecting, new ScanState(), JenkinsfileLookupStrategy.ITEMS_BATCH, ALL_BRANCHES);
+            assertFound(rejecting, scan(scanner), ALL_BRANCHES);
+            assertThat(log(), containsString("itemsbatch requests were rejected, their branches were probed with one request each"));
+            assertThat(log(), not(containsString("itemsbatch is not supported")));
+
+            //The endpoint works, so the next scan still batches
+            int batches = rejecting.getRequestCount(FakeTfs.ITEMS_BATCH);
+            scan(newScanner(rejecting, new ScanState(), JenkinsfileLookupStrategy.ITEMS_BATCH, ALL_BRANCHES));
+            assertEquals(2 * batches, rejecting.getRequestCount(FakeTfs.ITEMS_BATCH));
+        } finally {
+            rejecting.stop();
+        }
+    }
+
+    @Test
+    public void includedBranchesArePaged() throws Exception {
+        FakeTfs bigRepos = new FakeTfs().repos(10).branches(12);
+        bigRepos.start();
+        try {
+            BranchFilter filter = BranchFilter.parse("release/ master", null, 2);
+            List<RepoScanResult> results = scan(newScanner(bigRepos, new ScanState(), JenkinsfileLookupStrategy.ITEMS_BATCH, filter));
+            assertFound(bigRepos, results, filter);
+            //One listing per include prefix: three release branches take two pages, master one
+            assertEquals(3 * bigRepos.getRepos().size(), bigRepos.getRequestCount(FakeTfs.REFS));
+        } finally {
+            bigRepos.stop();
+        }
+    }
+
+    @Test
+    public void excludedBranchesAreNotProbed() throws Exception {
+        BranchFilter filter = BranchFilter.parse(null, "users/ bugfix/", 0);
+        List<RepoScanResult> results = scan(newScanner(tfs, new ScanState(), JenkinsfileLookupStrategy.PER_BRANCH, filter));
+        assertFound(tfs, results, filter);
+        assertThat(log(), not(containsString("Found branch: refs/heads/users/")));
+    }
+
+    @Test
+    public void survivesTransientErrors() throws Exception {
+        FakeTfs flaky = new FakeTfs().repos(20).branches(5).errorRate(0.05);
+        flaky.start();
+        try {
+            assertFound(flaky, scan(newScanner(flaky, new ScanState(), JenkinsfileLookupStrategy.ITEMS_BATCH, ALL_BRANCHES)), ALL_BRANCHES);
+            assertThat(metrics.getHosts().get(0).getRetries(), greaterThan(0L));
+        } finally {
+            flaky.stop();
+        }
+    }
+
+    @Test
+    public void tellsAMissingEndpointFromARejectedBatch() {
+        JSONObject none = new JSONObject();
+        assertTrue(TfsScanner.isEndpointMissing(405, none));
+        assertTrue(TfsScanner.isEndpointMissing(501, none));
+        assertTrue(TfsScanner.isEndpointMissing(404, none));
+        assertTrue(TfsScanner.isEndpointMissing(404, new JSONObject().put("typeKey", "ResourceNotFoundException").put("message", "API resource location not found")));
+        assertFalse(TfsScanner.isEndpointMissing(404, new JSONObject().put("typeKey", "GitItemNotFoundException").put("message", "TF401174: The item could not be found")));
+        assertFalse(TfsScanner.isEndpointMissing(404, new JSONObject().put("message", "TF401175: The version descriptor could not be resolved")));
+        assertFalse(TfsScanner.isEndpointMissing(400, none));
+        assertFalse(TfsScanner.isEndpointMissing(200, none));
+    }
+}
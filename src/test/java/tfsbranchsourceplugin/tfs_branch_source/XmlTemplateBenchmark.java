@@ -0,0 +1,68 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Renders the built in multibranch job template, as done for every generated job, and compares it with
+ * the replaceAll calls jobs were rendered with before {@link XmlTemplate}. Run by {@link JmhBenchmarkTest}.
+ */
+@State(Scope.Thread)
+public class XmlTemplateBenchmark {
+
+    private final Map<String, String> values = new HashMap<>();
+    private XmlTemplate template;
+    private String source;
+
+    @Setup
+    public void parseTemplate() {
+        source = MultiBranchPipelineBuilder.getMultibranchPipelineXml();
+        template = XmlTemplate.parse(source);
+        values.put(XmlTemplate.REPO, "payments-service & tools");
+        values.put(XmlTemplate.GUID, "5f0c6d1e-8a8b-3a9e-9a6e-3c1f1d0b9a77");
+        values.put(XmlTemplate.CREDENTIALS_ID, "tfs-builder");
+        values.put(XmlTemplate.URL, "https://tfs.example.com/tfs/DefaultCollection/Fabrikam");
+        values.put(XmlTemplate.FILE_TYPE, "Jenkinsfile");
+        values.put(XmlTemplate.TRIGGER_SPEC, "H H * * *");
+        values.put(XmlTemplate.TRIGGER_INTERVAL, "86400000");
+        values.put(XmlTemplate.DESCRIPTION, GeneratedJobMarker.describe(values.get(XmlTemplate.URL) + "/_git/payments-service & tools"));
+    }
+
+    /** Renders the config.xml a job is created from. */
+    @Benchmark
+    public byte[] render() {
+        return template.render(values);
+    }
+
+    /** Looks the template up in the cache first, as every scan does. */
+    @Benchmark
+    public byte[] renderCached() {
+        return XmlTemplate.of("benchmark", source).render(values);
+    }
+
+    /**
+     * How jobs used to be rendered: one regex replaceAll over the whole template per token, with a random
+     * guid, and the result encoded again. The values are not escaped, as they weren't then.
+     */
+    @Benchmark
+    public byte[] renderWithReplaceAll() {
+        String xml = source;
+        xml = xml.replaceAll("#repo#", values.get(XmlTemplate.REPO));
+        xml = xml.replaceAll("#guid#", UUID.randomUUID().toString());
+        xml = xml.replaceAll("#credentialsId#", values.get(XmlTemplate.CREDENTIALS_ID));
+        xml = xml.replaceAll("#url#", values.get(XmlTemplate.URL));
+        xml = xml.replaceAll("#fileType#", values.get(XmlTemplate.FILE_TYPE));
+        //Tokens added since, so both renderings do the same work
+        xml = xml.replaceAll("#triggerSpec#", values.get(XmlTemplate.TRIGGER_SPEC));
+        xml = xml.replaceAll("#triggerInterval#", values.get(XmlTemplate.TRIGGER_INTERVAL));
+        xml = xml.replaceAll("#description#", values.get(XmlTemplate.DESCRIPTION));
+        return xml.getBytes(StandardCharsets.UTF_8);
+    }
+}
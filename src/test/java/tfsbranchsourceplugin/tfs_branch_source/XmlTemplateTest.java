@@ -0,0 +1,177 @@
+package tfsbranchsourceplugin.tfs_branch_source;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class XmlTemplateTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private static String render(XmlTemplate template, Map<String, String> values) {
+        return new String(template.render(values), StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> values(String... pairs) {
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            values.put(pairs[i], pairs[i + 1]);
+        }
+        return values;
+    }
+
+    @Test
+    public void rendersTokens() throws Exception {
+        XmlTemplate template = XmlTemplate.parse("<job><remote>#url#/_git/#repo#</remote><script>#fileType#</script></job>");
+        assertEquals("<job><remote>http://tfs/Fabrikam/_git/app</remote><script>Jenkinsfile</script></job>",
+                render(template, values(XmlTemplate.URL, "http://tfs/Fabrikam", XmlTemplate.REPO, "app", XmlTemplate.FILE_TYPE, "Jenkinsfile")));
+    }
+
+    @Test
+    public void escapesValues() throws Exception {
+        XmlTemplate template = XmlTemplate.parse("<job name=\"#repo#\">#repo#</job>");
+        //Characters that broke regex replacement are copied as they are
+        assertEquals("<job name=\"a&amp;b&lt;&gt;&quot;&apos;$1\\\">a&amp;b&lt;&gt;&quot;&apos;$1\\</job>",
+                render(template, values(XmlTemplate.REPO, "a&b<>\"'$1\\")));
+    }
+
+    @Test
+    public void leavesOtherHashesAlone() throws Exception {
+        XmlTemplate template = XmlTemplate.parse("<job><d>C# and #notAToken# and #repo#</d><e>#</e></job>");
+        assertEquals("<job><d>C# and #notAToken# and app</d><e>#</e></job>", render(template, values(XmlTemplate.REPO, "app")));
+        assertTrue(template.hasToken(XmlTemplate.REPO));
+        assertFalse(template.hasToken(XmlTemplate.DESCRIPTION));
+    }
+
+    @Test
+    public void missingValuesRenderEmpty() throws Exception {
+        XmlTemplate template = XmlTemplate.parse("<job><description>#description#</description></job>");
+        assertEquals("<job><description></description></job>", render(template, values()));
+    }
+
+    @Test
+    public void rendersNonAscii() throws Exception {
+        XmlTemplate template = XmlTemplate.parse("<job>\u00dc #repo#</job>");
+        assertEquals("<job>\u00dc B\u00fccher</job>", render(template, values(XmlTemplate.REPO, "B\u00fccher")));
+    }
+
+    @Test
+    public void rejectsMalformedXml() {
+        try {
+            XmlTemplate.parse("<job><remote>#url#</job>");
+            fail("Malformed templates should be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Job template is not valid XML"));
+        }
+    }
+
+    @Test
+    public void rejectsDoctypes() {
+        try {
+            XmlTemplate.parse("<?xml version=\"1.0\"?><!DOCTYPE job [<!ENTITY x SYSTEM \"file:///etc/passwd\">]><job>&x;</job>");
+            fail("Templates with a DOCTYPE should be rejected");
+        } catch (IllegalArgumentException e) {
+            //Expected
+        }
+    }
+
+    @Test
+    public void builtInTemplatesAreValid() {
+        assertTrue(XmlTemplate.parse(MultiBranchPipelineBuilder.getMultibranchPipelineXml()).hasToken(XmlTemplate.DESCRIPTION));
+        assertTrue(XmlTemplate.parse(MultiBranchPipelineBuilder.getPipelineXml()).hasToken(XmlTemplate.DESCRIPTION));
+    }
+
+    @Test
+    public void cachesBySource() {
+        String source = "XmlTemplateTest.cachesBySource";
+        XmlTemplate first = XmlTemplate.of(source, "<job>#repo#</job>");
+        assertSame(first, XmlTemplate.of(source, "<job>#repo#</job>"));
+
+        //A changed file replaces its entry
+        XmlTemplate changed = XmlTemplate.of(source, "<job><name>#repo#</name></job>");
+        assertNotSame(first, changed);
+        assertSame(changed, XmlTemplate.of(source, "<job><name>#repo#</name></job>"));
+
+        XmlTemplate.forget(source);
+        assertNotSame(changed, XmlTemplate.of(source, "<job><name>#repo#</name></job>"));
+        XmlTemplate.forget(source);
+    }
+
+    @Test
+    public void rendersACopyOfTheBuffer() {
+        XmlTemplate template = XmlTemplate.parse("<job>#repo#</job>");
+        byte[] first = template.render(values(XmlTemplate.REPO, "app"));
+        template.render(values(XmlTemplate.REPO, "tools"));
+        assertEquals("<job>app</job>", new String(first, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void filesAreReadAgainOnlyWhenChanged() throws IOException {
+        File file = temp.newFile("multibranch-template.xml");
+        write(file, "<job>#repo#</job>", 1000000000000L);
+        XmlTemplate first = XmlTemplate.of(file);
+        assertSame(first, XmlTemplate.of(file));
+
+        //Edited in place, keeping its size and modification time, so the cached template is still used
+        write(file, "<job>#url#</job>", 1000000000000L);
+        assertSame(first, XmlTemplate.of(file));
+
+        write(file, "<job>#url#</job>", 1000000060000L);
+        XmlTemplate changed = XmlTemplate.of(file);
+        assertNotSame(first, changed);
+        assertTrue(changed.hasToken(XmlTemplate.URL));
+        XmlTemplate.forget(file.getPath());
+    }
+
+    private static void write(File file, String template, long lastModified) throws IOException {
+        Files.write(file.toPath(), template.getBytes(StandardCharsets.UTF_8));
+        assertTrue(file.setLastModified(lastModified));
+    }
+
+    @Test
+    public void invalidTemplatesAreNotCached() {
+        String source = "XmlTemplateTest.invalidTemplatesAreNotCached";
+        XmlTemplate valid = XmlTemplate.of(source, "<job/>");
+        try {
+            XmlTemplate.of(source, "<job>");
+            fail("Malformed templates should be rejected");
+        } catch (IllegalArgumentException e) {
+            //Expected
+        }
+        assertSame(valid, XmlTemplate.of(source, "<job/>"));
+        XmlTemplate.forget(source);
+    }
+
+    @Test
+    public void fingerprintFollowsTemplateAndValues() {
+        XmlTemplate template = XmlTemplate.parse("<job>#repo#</job>");
+        String fingerprint = template.fingerprint(values(XmlTemplate.REPO, "app", XmlTemplate.URL, "http://tfs"));
+        assertEquals(fingerprint, XmlTemplate.parse("<job>#repo#</job>").fingerprint(values(XmlTemplate.URL, "http://tfs", XmlTemplate.REPO, "app")));
+        assertNotEquals(fingerprint, template.fingerprint(values(XmlTemplate.REPO, "other", XmlTemplate.URL, "http://tfs")));
+        assertNotEquals(fingerprint, XmlTemplate.parse("<job><name>#repo#</name></job>").fingerprint(values(XmlTemplate.REPO, "app", XmlTemplate.URL, "http://tfs")));
+    }
+
+    @Test
+    public void rendersIntoAReusedBuffer() throws Exception {
+        XmlTemplate template = XmlTemplate.parse("<job>#repo#</job>");
+        //Each render must be consumed before the next one on the same thread
+        assertEquals("<job>a</job>", render(template, values(XmlTemplate.REPO, "a")));
+        assertEquals("<job>bb</job>", render(template, values(XmlTemplate.REPO, "bb")));
+    }
+}